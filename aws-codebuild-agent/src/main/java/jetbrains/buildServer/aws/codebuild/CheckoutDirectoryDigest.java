@@ -0,0 +1,60 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Calculates SHA-256 digest of the walked directory tree: relative paths, sizes and contents of all files in the walk order
+ *
+ * @author vbedrosova
+ */
+final class CheckoutDirectoryDigest {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private CheckoutDirectoryDigest() {}
+
+  @NotNull
+  static String compute(@NotNull List<SourceTreeWalker.Entry> entries) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    final byte[] buffer = new byte[64 * 1024];
+    for (SourceTreeWalker.Entry e : entries) {
+      if (e.isDirectory()) continue;
+      digest.update(e.path.getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      digest.update(String.valueOf(e.file.length()).getBytes(StandardCharsets.UTF_8));
+      digest.update((byte) 0);
+      final InputStream in = new FileInputStream(e.file);
+      try {
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+          digest.update(buffer, 0, read);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return toHex(digest.digest());
+  }
+
+  @NotNull
+  static String toHex(@NotNull byte[] bytes) {
+    final char[] res = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; ++i) {
+      res[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+      res[2 * i + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(res);
+  }
+}
@@ -0,0 +1,208 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.ArtifactsWatcher;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static jetbrains.buildServer.aws.codebuild.CodeBuildConstants.*;
+import static jetbrains.buildServer.aws.codebuild.CodeBuildUtil.*;
+
+/**
+ * Downloads the AWS CodeBuild build S3 artifacts and publishes them as TeamCity build artifacts.
+ *
+ * Zipped artifacts are read with parallel ranged GETs and unpacked as a stream without storing the archive,
+ * artifacts folders are downloaded object by object in parallel. The parts buffered by all the streams of a download
+ * are bounded by the {@link CodeBuildConstants#ARTIFACTS_DOWNLOAD_MAX_BUFFERED_MB_CONFIG_PARAM} size.
+ *
+ * @author vbedrosova
+ */
+final class CodeBuildArtifactsDownloader {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  @NotNull
+  private final AWSClientsCache myClientsCache;
+  @NotNull
+  private final ArtifactsWatcher myArtifactsWatcher;
+
+  CodeBuildArtifactsDownloader(@NotNull AWSClientsCache clientsCache, @NotNull ArtifactsWatcher artifactsWatcher) {
+    myClientsCache = clientsCache;
+    myArtifactsWatcher = artifactsWatcher;
+  }
+
+  void download(@NotNull CodeBuildBuildContext c, @NotNull AgentRunningBuild build) throws IOException {
+    final String bucket = getBucketName(c.artifactsLocation);
+    final String key = getObjectKey(c.artifactsLocation);
+    if (bucket == null || key == null) {
+      throw new IOException("Unexpected artifacts location " + c.artifactsLocation);
+    }
+
+    final Map<String, String> configParams = build.getSharedConfigParameters();
+    final int threads = Math.max(1, getInt(configParams, ARTIFACTS_DOWNLOAD_THREADS_CONFIG_PARAM, DEFAULT_ARTIFACTS_DOWNLOAD_THREADS));
+    final int partSize = Math.max(1, getInt(configParams, ARTIFACTS_DOWNLOAD_PART_SIZE_MB_CONFIG_PARAM, DEFAULT_ARTIFACTS_DOWNLOAD_PART_SIZE_MB)) * 1024 * 1024;
+    final long maxBuffered = getLong(configParams, ARTIFACTS_DOWNLOAD_MAX_BUFFERED_MB_CONFIG_PARAM, DEFAULT_ARTIFACTS_DOWNLOAD_MAX_BUFFERED_MB) * 1024 * 1024;
+    final Semaphore buffers = new Semaphore((int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBuffered / partSize)));
+
+    final File dir = new File(build.getBuildTempDirectory(), "codebuild-artifacts-" + c.codeBuildBuildId.replaceAll("[^a-zA-Z0-9_.-]", "_"));
+    FileUtil.delete(dir);
+    if (!dir.mkdirs()) throw new IOException("Failed to create directory " + dir);
+
+    final AWSClientsCache.Lease lease = myClientsCache.acquire(c.params);
+    final AmazonS3 s3 = lease.getS3Client();
+    final long start = System.currentTimeMillis();
+    final ExecutorService rangesExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("AWS CodeBuild artifacts download"));
+    final Stats stats = new Stats();
+    try {
+      if (isZipS3Artifacts(c.params)) {
+        final long size = s3.getObjectMetadata(bucket, key).getContentLength();
+        unzip(new S3RangedInputStream(s3, bucket, key, size, partSize, threads, rangesExecutor, buffers), dir, stats);
+      } else {
+        downloadFolder(s3, bucket, key, dir, partSize, threads, rangesExecutor, buffers, stats);
+      }
+    } finally {
+      rangesExecutor.shutdownNow();
+      lease.close();
+    }
+
+    final String path = getArtifactsDownloadPath(c.params);
+    myArtifactsWatcher.addNewArtifactsPath(dir.getAbsolutePath() + "/**" + (StringUtil.isEmptyOrSpaces(path) ? "" : " => " + path.trim()));
+    build.getBuildLogger().getFlowLogger(c.codeBuildBuildId).message(
+      "Downloaded " + stats.files.get() + " artifact file(s), " + stats.bytes.get() + " bytes from s3://" + bucket + "/" + key + " in " + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private static void unzip(@NotNull InputStream in, @NotNull File dir, @NotNull Stats stats) throws IOException {
+    final ZipInputStream zip = new ZipInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+    try {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      ZipEntry entry;
+      while ((entry = zip.getNextEntry()) != null) {
+        final File target = resolve(dir, entry.getName());
+        if (entry.isDirectory()) {
+          if (!target.isDirectory() && !target.mkdirs()) throw new IOException("Failed to create directory " + target);
+          continue;
+        }
+        final OutputStream out = createFile(target);
+        try {
+          int read;
+          while ((read = zip.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+            stats.bytes.addAndGet(read);
+          }
+        } finally {
+          out.close();
+        }
+        stats.files.incrementAndGet();
+      }
+    } finally {
+      zip.close();
+    }
+  }
+
+  private static void downloadFolder(@NotNull final AmazonS3 s3,
+                                     @NotNull final String bucket,
+                                     @NotNull String key,
+                                     @NotNull final File dir,
+                                     final int partSize,
+                                     final int threads,
+                                     @NotNull final ExecutorService rangesExecutor,
+                                     @NotNull final Semaphore buffers,
+                                     @NotNull final Stats stats) throws IOException {
+    final String prefix = key.endsWith("/") ? key : key + "/";
+    final ExecutorService filesExecutor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("AWS CodeBuild artifacts files download"));
+    final List<Future<?>> files = new ArrayList<Future<?>>();
+    try {
+      final ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+      ListObjectsV2Result result;
+      do {
+        result = s3.listObjectsV2(request);
+        for (final S3ObjectSummary o : result.getObjectSummaries()) {
+          if (o.getKey().endsWith("/")) continue;
+          final File target = resolve(dir, o.getKey().substring(prefix.length()));
+          files.add(filesExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+              // large objects are split into ranges, small ones are requested with a single GET
+              final InputStream in = new S3RangedInputStream(s3, bucket, o.getKey(), o.getSize(), partSize, o.getSize() > partSize ? threads : 1, rangesExecutor, buffers);
+              try {
+                copy(in, target);
+              } finally {
+                in.close();
+              }
+              stats.files.incrementAndGet();
+              stats.bytes.addAndGet(o.getSize());
+              return null;
+            }
+          }));
+        }
+        request.setContinuationToken(result.getNextContinuationToken());
+      } while (result.isTruncated());
+
+      for (Future<?> f : files) {
+        try {
+          f.get();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while downloading artifacts");
+        } catch (ExecutionException e) {
+          final Throwable cause = e.getCause();
+          if (cause instanceof IOException) throw (IOException) cause;
+          throw new IOException("Failed to download artifacts: " + cause.getMessage(), cause);
+        }
+      }
+    } finally {
+      filesExecutor.shutdownNow();
+    }
+  }
+
+  private static void copy(@NotNull InputStream in, @NotNull File target) throws IOException {
+    final OutputStream out = createFile(target);
+    try {
+      final byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        out.write(buffer, 0, read);
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  @NotNull
+  private static OutputStream createFile(@NotNull File target) throws IOException {
+    final File parent = target.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) throw new IOException("Failed to create directory " + parent);
+    return new BufferedOutputStream(new FileOutputStream(target), BUFFER_SIZE);
+  }
+
+  /**
+   * Returns the file for the artifact path making sure it doesn't point outside the directory
+   */
+  @NotNull
+  private static File resolve(@NotNull File dir, @NotNull String path) throws IOException {
+    final File res = new File(dir, path);
+    final String dirPath = dir.getCanonicalPath() + File.separator;
+    if (!res.getCanonicalPath().startsWith(dirPath)) {
+      throw new IOException("Artifact path " + path + " points outside of the target directory");
+    }
+    return res;
+  }
+
+  private static final class Stats {
+    @NotNull private final AtomicLong files = new AtomicLong();
+    @NotNull private final AtomicLong bytes = new AtomicLong();
+  }
+}
@@ -0,0 +1,56 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author vbedrosova
+ */
+final class CodeBuildBuildContext {
+  @NotNull final String codeBuildBuildId;
+  @NotNull final String codeBuildProjectName;
+  @NotNull final String name; // project name with the environment matrix overrides
+  @NotNull final Map<String, String> params;
+  @NotNull final Map<String, String> prevPhases = new HashMap<String, String>();
+  boolean reused; // an identical build started earlier, it's not stopped if the step is interrupted
+
+  // maintained by CodeBuildPollScheduler
+  long pollInterval;
+  long nextPollTime;
+  @Nullable String lastPhaseState;
+
+  @Nullable String buildStatus; // set when the build is complete
+  @Nullable String artifactsLocation; // set when the build is complete
+
+  // maintained by CodeBuildRunner when the builds are journaled
+  @Nullable String journalKey;
+  @NotNull final Map<String, String> journaledPhases = new HashMap<String, String>();
+
+  // maintained by CodeBuildLogsTailer
+  @Nullable String logsForwardToken;
+
+  CodeBuildBuildContext(@NotNull String codeBuildBuildId, @NotNull String codeBuildProjectName, @NotNull String name, @NotNull Map<String, String> params) {
+    this.codeBuildBuildId = codeBuildBuildId;
+    this.codeBuildProjectName = codeBuildProjectName;
+    this.name = name;
+    this.params = params;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+
+    CodeBuildBuildContext that = (CodeBuildBuildContext) o;
+
+    return codeBuildBuildId.equals(that.codeBuildBuildId);
+  }
+
+  @Override
+  public int hashCode() {
+    return codeBuildBuildId.hashCode();
+  }
+}
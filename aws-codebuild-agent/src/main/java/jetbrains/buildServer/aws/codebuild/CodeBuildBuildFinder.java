@@ -0,0 +1,144 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.AWSCodeBuild;
+import com.amazonaws.services.codebuild.model.*;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Finds a recent AWS CodeBuild build started with the same inputs to reuse its result instead of starting a new build.
+ *
+ * The builds started with the reuse enabled carry the {@link CodeBuildConstants#FINGERPRINT_VARIABLE} Environment variable
+ * added by the caller, see {@link #withFingerprint}: a digest of the documented build inputs only, the project name, source version,
+ * buildspec, environment and image overrides and the user-configured Environment variables of the environment matrix.
+ * The system properties passed as Environment variables aren't digested, they differ between the builds with the same inputs.
+ * A build matches if it has the same fingerprint and is either in progress or succeeded not earlier than the max age ago.
+ * The builds not started yet are skipped.
+ * Only the latest builds of each project are looked through, each project is looked up once per step.
+ *
+ * @author vbedrosova
+ */
+final class CodeBuildBuildFinder {
+  @NotNull private final AWSCodeBuild myClient;
+  @NotNull private final AWSCallScheduler myScheduler;
+  private final int myLookupBuilds;
+  private final long myMaxAge;
+  @NotNull private final Map<String, List<Build>> myRecentBuilds = new HashMap<String, List<Build>>(); // by project name
+
+  CodeBuildBuildFinder(@NotNull AWSCodeBuild client, @NotNull AWSCallScheduler scheduler, int lookupBuilds, long maxAge) {
+    myClient = client;
+    myScheduler = scheduler;
+    myLookupBuilds = Math.max(1, Math.min(lookupBuilds, CodeBuildBuildsPoller.MAX_BATCH_SIZE));
+    myMaxAge = maxAge;
+  }
+
+  /**
+   * Returns the latest build of the project with the fingerprint if any
+   */
+  @Nullable
+  Build find(@NotNull String projectName, @NotNull String fingerprint) {
+    final long minEndTime = System.currentTimeMillis() - myMaxAge;
+    for (Build b : getRecentBuilds(projectName)) {
+      if (!fingerprint.equals(getFingerprint(b))) continue;
+      if (CodeBuildUtil.isInProgress(b.getBuildStatus())) return b;
+      if (CodeBuildUtil.isSucceeded(b.getBuildStatus()) && b.getEndTime() != null && b.getEndTime().getTime() >= minEndTime) return b;
+    }
+    return null;
+  }
+
+  @NotNull
+  private List<Build> getRecentBuilds(@NotNull final String projectName) {
+    synchronized (myRecentBuilds) {
+      List<Build> builds = myRecentBuilds.get(projectName);
+      if (builds == null) {
+        final List<String> ids = myScheduler.call("ListBuildsForProject", new AWSCallScheduler.Call<List<String>>() {
+          @Override
+          public List<String> run() {
+            return myClient.listBuildsForProject(new ListBuildsForProjectRequest().withProjectName(projectName).withSortOrder(SortOrderType.DESCENDING)).getIds();
+          }
+        });
+        final List<String> batch = ids.subList(0, Math.min(ids.size(), myLookupBuilds));
+        builds = new ArrayList<Build>();
+        if (!batch.isEmpty()) {
+          final List<Build> found = myScheduler.call("BatchGetBuilds", new AWSCallScheduler.Call<List<Build>>() {
+            @Override
+            public List<Build> run() {
+              return myClient.batchGetBuilds(new BatchGetBuildsRequest().withIds(batch)).getBuilds();
+            }
+          });
+          for (Build b : found) {
+            if (b.getStartTime() != null) builds.add(b); // not started yet
+          }
+        }
+        // BatchGetBuilds doesn't keep the ids order
+        Collections.sort(builds, new Comparator<Build>() {
+          @Override
+          public int compare(Build o1, Build o2) {
+            return o2.getStartTime().compareTo(o1.getStartTime());
+          }
+        });
+        myRecentBuilds.put(projectName, builds);
+      }
+      return builds;
+    }
+  }
+
+  @Nullable
+  private static String getFingerprint(@NotNull Build build) {
+    if (build.getEnvironment() == null || build.getEnvironment().getEnvironmentVariables() == null) return null;
+    for (EnvironmentVariable v : build.getEnvironment().getEnvironmentVariables()) {
+      if (CodeBuildConstants.FINGERPRINT_VARIABLE.equals(v.getName())) return v.getValue();
+    }
+    return null;
+  }
+
+  /**
+   * Returns the digest of the request build inputs and the user-configured Environment variables,
+   * the other Environment variables of the request aren't digested
+   */
+  @NotNull
+  static String getFingerprint(@NotNull StartBuildRequest request, @NotNull Map<String, String> userVariables) {
+    final StringBuilder sb = new StringBuilder();
+    append(sb, request.getProjectName());
+    append(sb, request.getSourceVersion());
+    append(sb, request.getBuildspecOverride());
+    append(sb, request.getEnvironmentTypeOverride());
+    append(sb, request.getImageOverride());
+    append(sb, request.getComputeTypeOverride());
+    for (Map.Entry<String, String> e : new TreeMap<String, String>(userVariables).entrySet()) {
+      append(sb, e.getKey());
+      append(sb, e.getValue());
+    }
+
+    try {
+      return CheckoutDirectoryDigest.toHex(MessageDigest.getInstance("SHA-256").digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Returns a copy of the request with the fingerprint Environment variable so that the build can be found later
+   */
+  @NotNull
+  static StartBuildRequest withFingerprint(@NotNull StartBuildRequest request, @NotNull String fingerprint) {
+    final List<EnvironmentVariable> variables = new ArrayList<EnvironmentVariable>();
+    if (request.getEnvironmentVariablesOverride() != null) variables.addAll(request.getEnvironmentVariablesOverride());
+    variables.add(new EnvironmentVariable().withName(CodeBuildConstants.FINGERPRINT_VARIABLE).withValue(fingerprint));
+    return request.clone().withEnvironmentVariablesOverride(variables);
+  }
+
+  private static void append(@NotNull StringBuilder sb, @Nullable String value) {
+    // length prefixed so that the values can't run into each other
+    if (value == null) {
+      sb.append("-1:");
+    } else {
+      sb.append(value.length()).append(':').append(value);
+    }
+  }
+}
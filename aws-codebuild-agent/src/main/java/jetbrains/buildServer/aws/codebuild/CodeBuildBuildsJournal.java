@@ -0,0 +1,143 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent-local journal of the AWS CodeBuild builds being waited for, so that they survive the agent restart.
+ *
+ * An entry is keyed by the build configuration, step and the StartBuild request fingerprint (see {@link CodeBuildBuildFinder#getFingerprint}),
+ * but not by the TeamCity build id as a rerun is a new build: a later build of the same step with the same inputs finds the build started
+ * by the previous attempt, and re-attaches to it only while it's running. Each entry is a small properties file
+ * holding the AWS CodeBuild build id, the TeamCity build id and the reported phases, replaced atomically on each update.
+ * Entries older than the longest AWS CodeBuild build timeout are removed.
+ *
+ * @author vbedrosova
+ */
+final class CodeBuildBuildsJournal {
+  private static final long MAX_AGE = TimeUnit.MINUTES.toMillis(480 + 60);
+  private static final String BUILD_ID = "codeBuildBuildId";
+  private static final String TEAMCITY_BUILD_ID = "teamCityBuildId";
+  private static final String PHASE_PREFIX = "phase.";
+
+  @NotNull private final File myDir;
+
+  CodeBuildBuildsJournal(@NotNull File dir) {
+    myDir = dir;
+  }
+
+  @NotNull
+  static String getKey(@NotNull String buildTypeId, @NotNull String stepId, @NotNull String fingerprint) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    final String key = buildTypeId + '\0' + stepId + '\0' + fingerprint;
+    return CheckoutDirectoryDigest.toHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Nullable
+  Entry get(@NotNull String key) {
+    final File file = getFile(key);
+    if (!file.isFile()) return null;
+    if (file.lastModified() < System.currentTimeMillis() - MAX_AGE) {
+      FileUtil.delete(file);
+      return null;
+    }
+
+    final Properties p = new Properties();
+    try {
+      final Reader in = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+      try {
+        p.load(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      FileUtil.delete(file);
+      return null;
+    }
+
+    final String buildId = p.getProperty(BUILD_ID);
+    if (buildId == null) {
+      FileUtil.delete(file);
+      return null;
+    }
+    final Entry res = new Entry(buildId, Long.parseLong(p.getProperty(TEAMCITY_BUILD_ID, "-1")));
+    for (String name : p.stringPropertyNames()) {
+      if (name.startsWith(PHASE_PREFIX)) res.prevPhases.put(name.substring(PHASE_PREFIX.length()), p.getProperty(name));
+    }
+    return res;
+  }
+
+  void put(@NotNull String key, @NotNull CodeBuildBuildContext c, long teamCityBuildId) throws IOException {
+    final Properties p = new Properties();
+    p.setProperty(BUILD_ID, c.codeBuildBuildId);
+    p.setProperty(TEAMCITY_BUILD_ID, String.valueOf(teamCityBuildId));
+    for (Map.Entry<String, String> e : c.prevPhases.entrySet()) {
+      // a phase reported in progress before its status is known
+      p.setProperty(PHASE_PREFIX + e.getKey(), e.getValue() == null ? CodeBuildConstants.IN_PROGRESS : e.getValue());
+    }
+
+    if (!myDir.isDirectory() && !myDir.mkdirs()) {
+      throw new IOException("Failed to create directory " + myDir);
+    }
+    final File temp = File.createTempFile("entry", ".tmp", myDir);
+    try {
+      final Writer out = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8);
+      try {
+        p.store(out, null);
+      } finally {
+        out.close();
+      }
+      Files.move(temp.toPath(), getFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      FileUtil.delete(temp);
+    }
+  }
+
+  void remove(@NotNull String key) {
+    FileUtil.delete(getFile(key));
+  }
+
+  /**
+   * Removes the entries left by the builds which can't be running anymore
+   */
+  void cleanup() {
+    final File[] files = myDir.listFiles();
+    if (files == null) return;
+    for (File f : files) {
+      if (f.lastModified() < System.currentTimeMillis() - MAX_AGE) FileUtil.delete(f);
+    }
+  }
+
+  @NotNull
+  private File getFile(@NotNull String key) {
+    return new File(myDir, key + ".properties");
+  }
+
+  static final class Entry {
+    @NotNull final String codeBuildBuildId;
+    final long teamCityBuildId;
+    @NotNull final Map<String, String> prevPhases = new HashMap<String, String>();
+
+    private Entry(@NotNull String codeBuildBuildId, long teamCityBuildId) {
+      this.codeBuildBuildId = codeBuildBuildId;
+      this.teamCityBuildId = teamCityBuildId;
+    }
+  }
+}
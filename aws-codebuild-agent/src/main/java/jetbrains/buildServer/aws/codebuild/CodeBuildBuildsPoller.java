@@ -0,0 +1,78 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.AWSCodeBuild;
+import com.amazonaws.services.codebuild.model.BatchGetBuildsRequest;
+import com.amazonaws.services.codebuild.model.Build;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+import static jetbrains.buildServer.aws.codebuild.CodeBuildUtil.getAWSConnectionParams;
+
+/**
+ * Requests statuses of several AWS CodeBuild builds at once: builds sharing the same
+ * AWS connection settings are requested with a single BatchGetBuilds call per {@link #MAX_BATCH_SIZE} builds
+ *
+ * @author vbedrosova
+ */
+final class CodeBuildBuildsPoller {
+  static final int MAX_BATCH_SIZE = 100;
+
+  private CodeBuildBuildsPoller() {}
+
+  /**
+   * Returns map from build context to the current build state, contexts whose builds were not found are absent from the map
+   */
+  @NotNull
+  static Map<CodeBuildBuildContext, Build> poll(@NotNull AWSClientsCache clientsCache, @NotNull Collection<CodeBuildBuildContext> contexts) {
+    final Map<Map<String, String>, List<CodeBuildBuildContext>> byConnection = new LinkedHashMap<Map<String, String>, List<CodeBuildBuildContext>>();
+    for (CodeBuildBuildContext c : contexts) {
+      final Map<String, String> connectionParams = getAWSConnectionParams(c.params);
+      List<CodeBuildBuildContext> group = byConnection.get(connectionParams);
+      if (group == null) {
+        group = new ArrayList<CodeBuildBuildContext>();
+        byConnection.put(connectionParams, group);
+      }
+      group.add(c);
+    }
+
+    final Map<CodeBuildBuildContext, Build> res = new HashMap<CodeBuildBuildContext, Build>();
+    for (List<CodeBuildBuildContext> group : byConnection.values()) {
+      final AWSClientsCache.Lease lease = clientsCache.acquire(group.get(0).params);
+      try {
+        res.putAll(poll(lease.getCodeBuildClient(), clientsCache.getCallScheduler(), group));
+      } finally {
+        lease.close();
+      }
+    }
+    return res;
+  }
+
+  @NotNull
+  private static Map<CodeBuildBuildContext, Build> poll(@NotNull final AWSCodeBuild client, @NotNull AWSCallScheduler scheduler, @NotNull List<CodeBuildBuildContext> group) {
+    final Map<String, CodeBuildBuildContext> byId = new HashMap<String, CodeBuildBuildContext>();
+    for (CodeBuildBuildContext c : group) {
+      byId.put(c.codeBuildBuildId, c);
+    }
+
+    final Map<CodeBuildBuildContext, Build> res = new HashMap<CodeBuildBuildContext, Build>();
+    final List<String> ids = new ArrayList<String>(byId.keySet());
+    for (int from = 0; from < ids.size(); from += MAX_BATCH_SIZE) {
+      final List<String> batch = ids.subList(from, Math.min(ids.size(), from + MAX_BATCH_SIZE));
+      final List<Build> builds = scheduler.call("BatchGetBuilds", new AWSCallScheduler.Call<List<Build>>() {
+        @Override
+        public List<Build> run() {
+          return client.batchGetBuilds(new BatchGetBuildsRequest().withIds(batch)).getBuilds();
+        }
+      });
+      if (builds == null) continue;
+      for (Build b : builds) {
+        final CodeBuildBuildContext c = byId.get(b.getId());
+        if (c != null && !res.containsKey(c)) {
+          res.put(c, b);
+        }
+      }
+    }
+    return res;
+  }
+}
@@ -0,0 +1,200 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.model.Build;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Tracks AWS CodeBuild builds on a few shared threads instead of a blocked thread per build.
+ *
+ * A single scheduled tick polls all the builds due according to their {@link CodeBuildPollScheduler} with batched
+ * BatchGetBuilds calls, and each received build state is handled by the build {@link Listener} as a separate task.
+ * A build is not polled again until its previous state is handled. The future returned by {@link #track} completes
+ * when the listener reports the build finished, or exceptionally if handling fails or {@link #MAX_POLL_FAILURES} polls in a row fail;
+ * a failed poll is otherwise retried on the next tick. Cancelling the future stops the tracking.
+ *
+ * @author vbedrosova
+ */
+final class CodeBuildBuildsTracker {
+  private static final int THREADS = 4;
+  private static final Logger LOG = Logger.getInstance(CodeBuildBuildsTracker.class.getName());
+  private static final long POLL_AHEAD = 500; // builds due soon are polled with the current batch
+  static final int MAX_POLL_FAILURES = 5; // each poll is already retried by AWSCallScheduler
+
+  interface Listener {
+    /**
+     * Handles the just received build state, returns true if the build should no longer be tracked
+     */
+    boolean update(@NotNull CodeBuildBuildContext c, @Nullable Build codeBuildBuild);
+  }
+
+  @NotNull
+  private final AWSClientsCache myClientsCache;
+  @NotNull
+  private final ScheduledExecutorService myExecutor = Executors.newScheduledThreadPool(THREADS, new NamedThreadFactory("AWS CodeBuild builds tracker"));
+  @NotNull
+  private final Map<CodeBuildBuildContext, Tracked> myTracked = new HashMap<CodeBuildBuildContext, Tracked>();
+  @Nullable
+  private ScheduledFuture<?> myTick;
+  private long myTickTime;
+
+  CodeBuildBuildsTracker(@NotNull AWSClientsCache clientsCache) {
+    myClientsCache = clientsCache;
+  }
+
+  @NotNull
+  CompletableFuture<Void> track(@NotNull final CodeBuildBuildContext c, @NotNull CodeBuildPollScheduler scheduler, @NotNull Listener listener) {
+    final Tracked t = new Tracked(c, scheduler, listener);
+    synchronized (this) {
+      myTracked.put(c, t);
+    }
+    t.future.whenComplete(new BiConsumer<Void, Throwable>() {
+      @Override
+      public void accept(Void result, Throwable e) {
+        synchronized (CodeBuildBuildsTracker.this) {
+          if (myTracked.get(c) == t) myTracked.remove(c);
+        }
+      }
+    });
+    requestTick();
+    return t.future;
+  }
+
+  void dispose() {
+    myExecutor.shutdownNow();
+    final List<Tracked> tracked;
+    synchronized (this) {
+      tracked = new ArrayList<Tracked>(myTracked.values());
+      myTracked.clear();
+    }
+    for (Tracked t : tracked) {
+      t.future.cancel(true);
+    }
+  }
+
+  /**
+   * Makes sure the tick is scheduled for the earliest poll time of the builds which are not being handled
+   */
+  private synchronized void requestTick() {
+    long next = Long.MAX_VALUE;
+    for (Tracked t : myTracked.values()) {
+      if (!t.inProgress) next = Math.min(next, t.context.nextPollTime);
+    }
+    if (next == Long.MAX_VALUE) return;
+    if (myTick != null && !myTick.isDone() && myTickTime <= next) return;
+
+    if (myTick != null) myTick.cancel(false);
+    myTickTime = next;
+    try {
+      myTick = myExecutor.schedule(new Runnable() {
+        @Override
+        public void run() {
+          tick();
+        }
+      }, Math.max(0, next - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException ignored) {
+      // disposed
+    }
+  }
+
+  private void tick() {
+    final List<Tracked> due = new ArrayList<Tracked>();
+    synchronized (this) {
+      myTick = null;
+      final long now = System.currentTimeMillis();
+      for (Tracked t : myTracked.values()) {
+        if (!t.inProgress && t.context.nextPollTime <= now + POLL_AHEAD) {
+          t.inProgress = true;
+          due.add(t);
+        }
+      }
+    }
+
+    if (!due.isEmpty()) {
+      final List<CodeBuildBuildContext> contexts = new ArrayList<CodeBuildBuildContext>(due.size());
+      for (Tracked t : due) {
+        contexts.add(t.context);
+      }
+
+      Map<CodeBuildBuildContext, Build> builds = null;
+      try {
+        builds = CodeBuildBuildsPoller.poll(myClientsCache, contexts);
+      } catch (Throwable e) {
+        pollFailed(due, e);
+      }
+
+      if (builds != null) {
+        for (final Tracked t : due) {
+          final Build codeBuildBuild = builds.get(t.context);
+          try {
+            myExecutor.execute(new Runnable() {
+              @Override
+              public void run() {
+                update(t, codeBuildBuild);
+              }
+            });
+          } catch (RejectedExecutionException e) {
+            t.future.cancel(false);
+          }
+        }
+      }
+    }
+    requestTick();
+  }
+
+  /**
+   * Fails the builds which couldn't be polled too many times in a row, the others are polled again when due
+   */
+  private void pollFailed(@NotNull List<Tracked> due, @NotNull Throwable e) {
+    LOG.warnAndDebugDetails("Failed to get the state of " + due.size() + " AWS CodeBuild build(s), will retry", e);
+    for (Tracked t : due) {
+      if (++t.pollFailures >= MAX_POLL_FAILURES) {
+        t.future.completeExceptionally(e);
+      } else {
+        t.scheduler.schedule(t.context, null);
+      }
+      synchronized (this) {
+        t.inProgress = false;
+      }
+    }
+  }
+
+  private void update(@NotNull Tracked t, @Nullable Build codeBuildBuild) {
+    try {
+      if (t.future.isDone()) return;
+      t.pollFailures = 0;
+      t.scheduler.schedule(t.context, codeBuildBuild);
+      if (t.listener.update(t.context, codeBuildBuild)) {
+        t.future.complete(null);
+      }
+    } catch (Throwable e) {
+      t.future.completeExceptionally(e);
+    } finally {
+      synchronized (this) {
+        t.inProgress = false;
+      }
+      requestTick();
+    }
+  }
+
+  private static final class Tracked {
+    @NotNull private final CodeBuildBuildContext context;
+    @NotNull private final CodeBuildPollScheduler scheduler;
+    @NotNull private final Listener listener;
+    @NotNull private final CompletableFuture<Void> future = new CompletableFuture<Void>();
+    private boolean inProgress;
+    private int pollFailures; // in a row
+
+    private Tracked(@NotNull CodeBuildBuildContext context, @NotNull CodeBuildPollScheduler scheduler, @NotNull Listener listener) {
+      this.context = context;
+      this.scheduler = scheduler;
+      this.listener = listener;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.model.Build;
+import com.amazonaws.services.codebuild.model.LogsLocation;
+import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.model.GetLogEventsRequest;
+import com.amazonaws.services.logs.model.GetLogEventsResult;
+import com.amazonaws.services.logs.model.OutputLogEvent;
+import com.amazonaws.services.logs.model.ResourceNotFoundException;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.agent.FlowLogger;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+import static jetbrains.buildServer.aws.codebuild.CodeBuildConstants.DEFAULT_MAX_LOG_LINES_PER_POLL;
+import static jetbrains.buildServer.aws.codebuild.CodeBuildConstants.MAX_LOG_LINES_PER_POLL_CONFIG_PARAM;
+import static jetbrains.buildServer.aws.codebuild.CodeBuildUtil.getInt;
+
+/**
+ * Copies new lines of the AWS CodeBuild build CloudWatch log stream to the build log.
+ *
+ * Each call reads the stream from the previously remembered forward token and writes at most
+ * %codebuild.logs.max.lines.per.poll% lines, so only one page of log events is held in memory at a time.
+ *
+ * @author vbedrosova
+ */
+final class CodeBuildLogsTailer {
+  private static final int MAX_EVENTS_PER_REQUEST = 10000;
+
+  @NotNull
+  private final AWSClientsCache myClientsCache;
+
+  CodeBuildLogsTailer(@NotNull AWSClientsCache clientsCache) {
+    myClientsCache = clientsCache;
+  }
+
+  /**
+   * Returns true if the lines limit was reached and the stream may contain more lines
+   */
+  boolean tail(@NotNull CodeBuildBuildContext c, @NotNull Build codeBuildBuild, @NotNull AgentRunningBuild build) {
+    final LogsLocation logs = codeBuildBuild.getLogs();
+    if (logs == null || StringUtil.isEmpty(logs.getGroupName()) || StringUtil.isEmpty(logs.getStreamName())) return false;
+
+    final AWSClientsCache.Lease lease = myClientsCache.acquire(c.params);
+    try {
+      return tail(c, logs, build, lease.getLogsClient());
+    } finally {
+      lease.close();
+    }
+  }
+
+  private boolean tail(@NotNull CodeBuildBuildContext c, @NotNull LogsLocation logs, @NotNull AgentRunningBuild build, @NotNull final AWSLogs client) {
+    final int maxLines = Math.max(1, getInt(build.getSharedConfigParameters(), MAX_LOG_LINES_PER_POLL_CONFIG_PARAM, DEFAULT_MAX_LOG_LINES_PER_POLL));
+    final FlowLogger logger = build.getBuildLogger().getFlowLogger(c.codeBuildBuildId);
+
+    int written = 0;
+    while (written < maxLines) {
+      final GetLogEventsRequest request = new GetLogEventsRequest(logs.getGroupName(), logs.getStreamName())
+        .withStartFromHead(true)
+        .withNextToken(c.logsForwardToken)
+        .withLimit(Math.min(MAX_EVENTS_PER_REQUEST, maxLines - written));
+      final GetLogEventsResult result;
+      try {
+        result = myClientsCache.getCallScheduler().call("GetLogEvents", new AWSCallScheduler.Call<GetLogEventsResult>() {
+          @Override
+          public GetLogEventsResult run() {
+            return client.getLogEvents(request);
+          }
+        });
+      } catch (ResourceNotFoundException e) {
+        return false; // the stream is not created yet
+      }
+      final String prevToken = c.logsForwardToken;
+      c.logsForwardToken = result.getNextForwardToken();
+
+      final List<OutputLogEvent> events = result.getEvents();
+      if (events != null) {
+        for (OutputLogEvent e : events) {
+          logger.message(removeTrailingLineBreak(e.getMessage()));
+        }
+        written += events.size();
+      }
+      // a page may be empty in the middle of the stream, the end is reached when the same token is returned
+      if (c.logsForwardToken == null || c.logsForwardToken.equals(prevToken)) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  private static String removeTrailingLineBreak(@Nullable String message) {
+    if (message == null) return "";
+    int end = message.length();
+    while (end > 0 && (message.charAt(end - 1) == '\n' || message.charAt(end - 1) == '\r')) --end;
+    return message.substring(0, end);
+  }
+}
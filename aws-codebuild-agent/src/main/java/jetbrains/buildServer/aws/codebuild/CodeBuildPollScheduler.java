@@ -0,0 +1,77 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.model.Build;
+import com.amazonaws.services.codebuild.model.BuildPhaseType;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static jetbrains.buildServer.aws.codebuild.CodeBuildConstants.*;
+import static jetbrains.buildServer.aws.codebuild.CodeBuildUtil.getLong;
+
+/**
+ * Decides when each tracked AWS CodeBuild build should be polled next.
+ *
+ * The maximum interval defaults to the former fixed poll interval, so a build is never noticed later than before.
+ * Short-lived phases are polled starting from the configured minimum interval which is doubled (with jitter) after each poll
+ * showing no progress, so that the next phase is noticed early. Long phases are polled at the maximum interval right away,
+ * as polling them more often would only add calls.
+ *
+ * @author vbedrosova
+ */
+final class CodeBuildPollScheduler {
+  private static final double JITTER = 0.2;
+  private static final Set<String> SHORT_PHASES = new HashSet<String>(Arrays.asList(
+    BuildPhaseType.SUBMITTED.toString(),
+    BuildPhaseType.DOWNLOAD_SOURCE.toString(),
+    BuildPhaseType.UPLOAD_ARTIFACTS.toString(),
+    BuildPhaseType.FINALIZING.toString(),
+    BuildPhaseType.COMPLETED.toString()
+  ));
+
+  private final long myMinInterval;
+  private final long myMaxInterval;
+
+  CodeBuildPollScheduler(long minInterval, long maxInterval) {
+    myMinInterval = Math.max(1, minInterval);
+    myMaxInterval = Math.max(myMinInterval, maxInterval);
+  }
+
+  @NotNull
+  static CodeBuildPollScheduler create(@NotNull AgentRunningBuild build) {
+    final Map<String, String> configParams = build.getSharedConfigParameters();
+    return new CodeBuildPollScheduler(
+      TimeUnit.SECONDS.toMillis(getLong(configParams, POLL_INTERVAL_MIN_CONFIG_PARAM, DEFAULT_POLL_INTERVAL_MIN_SECONDS)),
+      TimeUnit.SECONDS.toMillis(getLong(configParams, POLL_INTERVAL_MAX_CONFIG_PARAM, DEFAULT_POLL_INTERVAL_MAX_SECONDS)));
+  }
+
+  /**
+   * Schedules the next poll of the build according to the just received build state
+   */
+  void schedule(@NotNull CodeBuildBuildContext c, @Nullable Build codeBuildBuild) {
+    final String currentPhase = codeBuildBuild == null ? null : codeBuildBuild.getCurrentPhase();
+    final String phaseState = codeBuildBuild == null ? null : currentPhase + ":" + (codeBuildBuild.getPhases() == null ? 0 : codeBuildBuild.getPhases().size());
+
+    final long interval;
+    if (currentPhase != null && !SHORT_PHASES.contains(currentPhase)) {
+      interval = myMaxInterval;
+    } else if (c.pollInterval == 0 || phaseState == null || !phaseState.equals(c.lastPhaseState)) {
+      interval = myMinInterval;
+    } else {
+      interval = Math.min(myMaxInterval, c.pollInterval * 2);
+    }
+
+    c.pollInterval = interval;
+    c.lastPhaseState = phaseState;
+    c.nextPollTime = System.currentTimeMillis() + withJitter(interval);
+  }
+
+  private long withJitter(long interval) {
+    final double factor = 1 - JITTER + 2 * JITTER * ThreadLocalRandom.current().nextDouble();
+    return Math.max(myMinInterval, Math.min(myMaxInterval, (long) (interval * factor)));
+  }
+}
@@ -0,0 +1,76 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps AWS CodeBuild projects source settings for a short time so that the steps started one after another
+ * or by several builds on the agent don't request them again.
+ *
+ * Entries are keyed by the AWS connection settings and the project name and expire after {@link #TTL}.
+ *
+ * @author vbedrosova
+ */
+final class CodeBuildProjectInfoCache {
+  static final long TTL = TimeUnit.MINUTES.toMillis(2);
+
+  @NotNull
+  private final AWSClientsCache myClientsCache;
+  @NotNull
+  private final Map<List<Object>, Entry> myEntries = new ConcurrentHashMap<List<Object>, Entry>();
+
+  CodeBuildProjectInfoCache(@NotNull AWSClientsCache clientsCache) {
+    myClientsCache = clientsCache;
+  }
+
+  @Nullable
+  CodeBuildUtil.ProjectInfo getProject(@NotNull Map<String, String> params, @NotNull String projectName) {
+    final long now = System.currentTimeMillis();
+    final List<Object> key = getKey(params, projectName);
+
+    final Entry cached = myEntries.get(key);
+    if (cached != null && now - cached.loadTime <= TTL) return cached.project;
+
+    final CodeBuildUtil.ProjectInfo project;
+    final AWSClientsCache.Lease lease = myClientsCache.acquire(params);
+    try {
+      project = CodeBuildUtil.getProject(lease.getCodeBuildClient(), myClientsCache.getCallScheduler(), projectName);
+    } finally {
+      lease.close();
+    }
+    if (project == null) {
+      myEntries.remove(key);
+    } else {
+      myEntries.put(key, new Entry(project, now));
+    }
+    return project;
+  }
+
+  /**
+   * Drops the cached project settings, e.g. when they turn out to be unexpected and may have been changed
+   */
+  void invalidate(@NotNull Map<String, String> params, @NotNull String projectName) {
+    myEntries.remove(getKey(params, projectName));
+  }
+
+  @NotNull
+  private static List<Object> getKey(@NotNull Map<String, String> params, @NotNull String projectName) {
+    return Arrays.<Object>asList(CodeBuildUtil.getAWSConnectionParams(params), projectName);
+  }
+
+  private static final class Entry {
+    @NotNull private final CodeBuildUtil.ProjectInfo project;
+    private final long loadTime;
+
+    private Entry(@NotNull CodeBuildUtil.ProjectInfo project, long loadTime) {
+      this.project = project;
+      this.loadTime = loadTime;
+    }
+  }
+}
@@ -2,6 +2,7 @@
 
 package jetbrains.buildServer.aws.codebuild;
 
+import com.amazonaws.services.codebuild.AWSCodeBuild;
 import com.amazonaws.services.codebuild.model.*;
 import jetbrains.buildServer.BuildProblemData;
 import jetbrains.buildServer.RunBuildException;
@@ -10,18 +11,16 @@ import jetbrains.buildServer.messages.BuildMessage1;
 import jetbrains.buildServer.messages.DefaultMessagesInfo;
 import jetbrains.buildServer.messages.ErrorData;
 import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.messages.serviceMessages.BuildStatisticValue;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
 import jetbrains.buildServer.util.*;
-import jetbrains.buildServer.util.amazon.AWSClients;
 import jetbrains.buildServer.util.amazon.AWSCommonParams;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.*;
 
 import static jetbrains.buildServer.aws.codebuild.CodeBuildUtil.*;
 import static jetbrains.buildServer.messages.DefaultMessagesInfo.*;
@@ -30,10 +29,37 @@ import static jetbrains.buildServer.messages.DefaultMessagesInfo.*;
  * @author vbedrosova
  */
 public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuildRunner {
+  private static final int STOP_BUILD_MAX_RETRIES = 3; // the build is about to finish, don't back off for long
+  private static final int MAX_CONCURRENT_STOPS = 10;
+  private static final long STOP_TIMEOUT_SECONDS = 60;
+  private static final int MAX_CONCURRENT_DOWNLOADS = 2; // each download is parallel on its own
+
   @NotNull
   private final List<CodeBuildBuildContext> myCodeBuildBuilds = new CopyOnWriteArrayList<CodeBuildBuildContext>();
-
-  public CodeBuildRunner(@NotNull EventDispatcher<AgentLifeCycleListener> eventDispatcher) {
+  @NotNull
+  private final AWSClientsCache myClientsCache;
+  @NotNull
+  private final CodeBuildLogsTailer myLogsTailer;
+  @NotNull
+  private final CodeBuildSourceUploader mySourceUploader;
+  @NotNull
+  private final CodeBuildProjectInfoCache myProjectsCache;
+  @NotNull
+  private final CodeBuildBuildsTracker myTracker;
+  @NotNull
+  private final CodeBuildArtifactsDownloader myArtifactsDownloader;
+  @NotNull
+  private volatile Map<String, long[]> myCallStatistics = Collections.emptyMap(); // at the build start
+  @NotNull
+  private volatile CompletableFuture<Void> myBuildInterrupted = new CompletableFuture<Void>();
+
+  public CodeBuildRunner(@NotNull EventDispatcher<AgentLifeCycleListener> eventDispatcher, @NotNull AWSClientsCache clientsCache, @NotNull ArtifactsWatcher artifactsWatcher) {
+    myClientsCache = clientsCache;
+    myLogsTailer = new CodeBuildLogsTailer(clientsCache);
+    mySourceUploader = new CodeBuildSourceUploader(clientsCache);
+    myProjectsCache = new CodeBuildProjectInfoCache(clientsCache);
+    myTracker = new CodeBuildBuildsTracker(clientsCache);
+    myArtifactsDownloader = new CodeBuildArtifactsDownloader(clientsCache, artifactsWatcher);
     eventDispatcher.addListener(this);
   }
 
@@ -41,61 +67,316 @@ public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuild
   @Override
   public BuildProcess createBuildProcess(@NotNull final AgentRunningBuild runningBuild, @NotNull final BuildRunnerContext context) throws RunBuildException {
     return new SyncBuildProcessAdapter() {
+      @NotNull
+      private final Map<String, Build> myReusedBuilds = new ConcurrentHashMap<String, Build>(); // found by CodeBuildBuildFinder
+      @NotNull
+      private final Map<String, CodeBuildBuildsJournal.Entry> myAttachedBuilds = new ConcurrentHashMap<String, CodeBuildBuildsJournal.Entry>(); // started by the previous attempt
+      @NotNull
+      private final Map<String, String> myAttachedBuildIds = new ConcurrentHashMap<String, String>(); // by request fingerprint
+      @Nullable
+      private CodeBuildBuildsJournal myJournal; // when waiting on the agent
+      @NotNull
+      private final CompletableFuture<Void> myInterrupted = new CompletableFuture<Void>();
+
+      @Override
+      protected void interruptImpl() {
+        myInterrupted.complete(null);
+      }
+
       @NotNull
       @Override
       protected BuildFinishedStatus runImpl() throws RunBuildException {
         final Map<String, String> runnerParameters = validateParams();
-        final String projectName = getProjectName(runnerParameters);
-        final String buildId = AWSCommonParams.withAWSClients(runnerParameters, new AWSCommonParams.WithAWSClients<String, RunBuildException>() {
-          @Nullable
-          @Override
-          public String run(@NotNull AWSClients clients) throws RunBuildException {
-            return clients.createCodeBuildClient().startBuild(
-              new StartBuildRequest()
-                .withProjectName(projectName)
-                .withSourceVersion(getSourceVersion(projectName))
-                .withBuildspecOverride(getBuildSpec(runnerParameters))
-                .withArtifactsOverride(getArtifacts())
-                .withTimeoutInMinutesOverride(getTimeoutMinutesInt(runnerParameters))
-                .withEnvironmentVariablesOverride(getEnvironmentVariables())).getBuild().getId();
+        if (isWaitServer(runnerParameters) && !Boolean.parseBoolean(runningBuild.getSharedConfigParameters().get(CodeBuildConstants.SERVER_WAIT_SUPPORTED_CONFIG_PARAM))) {
+          // otherwise the detached build would never be finished
+          throw new RunBuildException("'" + CodeBuildConstants.WAIT_SERVER_LABEL + "' wait mode requires TeamCity 2020.1 or newer");
+        }
+        if (isWaitStep(runnerParameters) || isWaitBuild(runnerParameters)) {
+          myJournal = getJournal(runningBuild);
+          myJournal.cleanup();
+        }
+        final List<String> projectNames = getProjectNames(runnerParameters);
+        final List<Map<String, String>> matrix = getEnvironmentMatrix(runnerParameters);
+
+        final Collection<EnvironmentVariable> environmentVariables = getEnvironmentVariables();
+        final List<StartBuildRequest> requests = new ArrayList<StartBuildRequest>();
+        final List<String> names = new ArrayList<String>();
+        final List<String> fingerprints = new ArrayList<String>();
+        for (String projectName : projectNames) {
+          final ProjectInfo s3Project = getBuildRevisionS3Project(projectName);
+          final CodeBuildSourceUploader.Checkout checkout = s3Project == null ? null : mySourceUploader.prepare(runningBuild, runnerParameters);
+          final String sourceVersion = checkout == null ? getSourceVersion(projectName) : null; // set once the checkout is uploaded
+          final int first = requests.size();
+          for (Map<String, String> overrides : matrix) {
+            final StartBuildRequest request = new StartBuildRequest()
+              .withProjectName(projectName)
+              .withSourceVersion(sourceVersion)
+              .withBuildspecOverride(getBuildSpec(runnerParameters))
+              .withArtifactsOverride(getArtifacts())
+              .withTimeoutInMinutesOverride(getTimeoutMinutesInt(runnerParameters))
+              .withEnvironmentVariablesOverride(withOverrides(environmentVariables, overrides));
+            requests.add(request);
+            names.add(overrides.isEmpty() ? projectName : projectName + " " + overrides);
+            // each upload creates a new S3 object version, the uploaded content identifies the source instead
+            final boolean digested = checkout != null && (myJournal != null || isReuseBuilds(runnerParameters));
+            fingerprints.add(CodeBuildBuildFinder.getFingerprint(digested ? request.clone().withSourceVersion(checkout.getDigest()) : request, overrides));
           }
-        });
 
-        runningBuild.addSharedSystemProperty(String.format(CodeBuildConstants.BUILD_ID_SYSTEM_PROPERTY_FORMAT, context.getId()), buildId);
+          // the checkout isn't uploaded if all the builds of the project started by the previous attempt are still running
+          final boolean attached = attachAll(requests.subList(first, requests.size()), fingerprints.subList(first, fingerprints.size()), names.subList(first, names.size()));
+          if (checkout != null && !attached) {
+            final String uploadedVersion = mySourceUploader.upload(runningBuild, runnerParameters, s3Project, checkout);
+            for (StartBuildRequest r : requests.subList(first, requests.size())) {
+              r.setSourceVersion(uploadedVersion);
+            }
+          }
+        }
 
-        final String region = runnerParameters.get(AWSCommonParams.REGION_NAME_PARAM);
-        runningBuild.getBuildLogger().message(projectName + " build " + getBuildLink(buildId, region) + " started");
-        runningBuild.getBuildLogger().message("View the entire log in the AWS CloudWatch console " + getBuildLogLink(buildId, projectName, region));
+        final List<CodeBuildBuildContext> started = startBuilds(requests, names, fingerprints, runnerParameters);
+        final List<String> buildIds = new ArrayList<String>();
+        for (CodeBuildBuildContext c : started) {
+          buildIds.add(c.codeBuildBuildId);
+        }
+        final String buildIdsProperty = String.format(CodeBuildConstants.BUILD_ID_SYSTEM_PROPERTY_FORMAT, context.getId());
+        runningBuild.addSharedSystemProperty(buildIdsProperty, StringUtil.join(buildIds, ","));
 
-        final CodeBuildBuildContext c = new CodeBuildBuildContext(buildId, projectName, runnerParameters);
-        if (isWaitStep(runnerParameters)) {
-          startContext(c, runningBuild);
-          try {
-            while (!finished(c, runningBuild)) {
-              if (isInterrupted()) {
-                CodeBuildRunner.this.interrupt(c, runningBuild);
-                break;
+        boolean succeeded = started.size() == requests.size();
+        if (isWaitStep(runnerParameters) || myInterrupted.isDone()) {
+          // the builds started before the interruption are stopped right away
+          succeeded &= await(started, runningBuild, myInterrupted);
+        } else if (isWaitBuild(runnerParameters)) {
+          myCodeBuildBuilds.addAll(started);
+        } else if (isWaitServer(runnerParameters) && !started.isEmpty()) {
+          detach(context.getId(), buildIdsProperty, StringUtil.join(buildIds, ","), runningBuild);
+        }
+
+        if (myInterrupted.isDone()) return BuildFinishedStatus.INTERRUPTED;
+        if (requests.size() > 1 && !succeeded) {
+          runningBuild.getBuildLogger().error("Not all of " + requests.size() + " AWS CodeBuild builds succeeded");
+          return BuildFinishedStatus.FINISHED_FAILED;
+        }
+        return BuildFinishedStatus.FINISHED_SUCCESS;
+      }
+
+      /**
+       * Starts at most {@link CodeBuildUtil#getMaxConcurrentStarts} builds at a time, returns the started builds in the requests order.
+       * Fails if no build could be started, otherwise the failed starts are only reported.
+       * If the step is interrupted meanwhile, the remaining builds are not started.
+       */
+      @NotNull
+      private List<CodeBuildBuildContext> startBuilds(@NotNull List<StartBuildRequest> requests, @NotNull List<String> names, @NotNull List<String> fingerprints, @NotNull Map<String, String> runnerParameters) throws RunBuildException {
+        final AWSClientsCache.Lease lease = myClientsCache.acquire(runnerParameters);
+        try {
+          return startBuilds(lease.getCodeBuildClient(), requests, names, fingerprints, runnerParameters);
+        } finally {
+          lease.close();
+        }
+      }
+
+      @NotNull
+      private List<CodeBuildBuildContext> startBuilds(@NotNull final AWSCodeBuild client,
+                                                      @NotNull List<StartBuildRequest> requests,
+                                                      @NotNull List<String> names,
+                                                      @NotNull List<String> fingerprints,
+                                                      @NotNull Map<String, String> runnerParameters) throws RunBuildException {
+        final CodeBuildBuildFinder finder = isReuseBuilds(runnerParameters) ? createBuildFinder(client) : null;
+        if (requests.size() == 1) {
+          return Collections.singletonList(started(startBuild(client, finder, requests.get(0), fingerprints.get(0), names.get(0)), requests.get(0), fingerprints.get(0), names.get(0), runnerParameters));
+        }
+
+        final int threads = Math.min(requests.size(), Math.max(1, getMaxConcurrentStarts(runnerParameters)));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("AWS CodeBuild builds starter"));
+        try {
+          final List<Future<String>> buildIds = new ArrayList<Future<String>>();
+          for (int i = 0; i < requests.size(); ++i) {
+            final StartBuildRequest r = requests.get(i);
+            final String fingerprint = fingerprints.get(i);
+            final String name = names.get(i);
+            buildIds.add(executor.submit(new Callable<String>() {
+              @Override
+              public String call() {
+                if (myInterrupted.isDone()) return null; // not started
+                return startBuild(client, finder, r, fingerprint, name);
               }
-              try {
-                Thread.sleep(CodeBuildConstants.POLL_INTERVAL);
-              } catch (InterruptedException e) {
-                break;
+            }));
+          }
+
+          final List<CodeBuildBuildContext> res = new ArrayList<CodeBuildBuildContext>();
+          Throwable failure = null;
+          for (int i = 0; i < requests.size(); ++i) {
+            try {
+              final String buildId = buildIds.get(i).get();
+              if (buildId != null) res.add(started(buildId, requests.get(i), fingerprints.get(i), names.get(i), runnerParameters));
+            } catch (ExecutionException e) {
+              failure = e.getCause();
+              runningBuild.getBuildLogger().error("Failed to start " + names.get(i) + " build: " + failure.getMessage());
+            } catch (InterruptedException e) {
+              // handled as the step interruption: no more builds are started, the ones being started are still collected to be stopped
+              myInterrupted.complete(null);
+              --i;
+            }
+          }
+          if (res.isEmpty() && failure != null) {
+            throw new RunBuildException("Failed to start AWS CodeBuild builds: " + failure.getMessage(), failure);
+          }
+          return res;
+        } finally {
+          executor.shutdownNow();
+        }
+      }
+
+      @NotNull
+      private CodeBuildBuildFinder createBuildFinder(@NotNull AWSCodeBuild client) {
+        final Map<String, String> configParameters = runningBuild.getSharedConfigParameters();
+        return new CodeBuildBuildFinder(client, myClientsCache.getCallScheduler(),
+          getInt(configParameters, CodeBuildConstants.REUSE_LOOKUP_BUILDS_CONFIG_PARAM, CodeBuildConstants.DEFAULT_REUSE_LOOKUP_BUILDS),
+          TimeUnit.MINUTES.toMillis(getLong(configParameters, CodeBuildConstants.REUSE_MAX_AGE_MINUTES_CONFIG_PARAM, CodeBuildConstants.DEFAULT_REUSE_MAX_AGE_MINUTES)));
+      }
+
+      /**
+       * Returns the id of a recent identical build if it's found and reuse is enabled, otherwise starts a new build
+       */
+      @NotNull
+      private String startBuild(@NotNull final AWSCodeBuild client,
+                                @Nullable CodeBuildBuildFinder finder,
+                                @NotNull StartBuildRequest request,
+                                @NotNull String fingerprint,
+                                @NotNull String name) {
+        final String attached = myAttachedBuildIds.remove(fingerprint);
+        if (attached != null) return attached;
+
+        if (finder != null && !isResolvedSourceVersion(context.getRunnerParameters(), request.getSourceVersion())) {
+          runningBuild.getBuildLogger().message(name + " can't reuse an identical build: the source version is neither the build revision nor a commit id");
+        } else if (finder != null) {
+          try {
+            final Build reusable = finder.find(request.getProjectName(), fingerprint);
+            if (reusable != null) {
+              myReusedBuilds.put(reusable.getId(), reusable);
+              return reusable.getId();
+            }
+          } catch (Exception e) {
+            runningBuild.getBuildLogger().warning("Failed to look for a build identical to " + name + ", starting a new one: " + e.getMessage());
+          }
+        }
+        // StartBuild isn't idempotent: the retries after a lost response mustn't start another build
+        final StartBuildRequest idempotentRequest = (finder == null ? request.clone() : CodeBuildBuildFinder.withFingerprint(request, fingerprint))
+          .withIdempotencyToken(UUID.randomUUID().toString());
+        return myClientsCache.getCallScheduler().call("StartBuild", new AWSCallScheduler.Call<String>() {
+          @Override
+          public String run() {
+            return client.startBuild(idempotentRequest).getBuild().getId();
+          }
+        });
+      }
+
+      /**
+       * Looks for the journaled builds started by the previous attempt of the step for the requests,
+       * returns true if all the requests are re-attached to the running builds
+       */
+      private boolean attachAll(@NotNull List<StartBuildRequest> requests, @NotNull List<String> fingerprints, @NotNull List<String> names) {
+        if (myJournal == null) return false;
+        final AWSClientsCache.Lease lease = myClientsCache.acquire(context.getRunnerParameters());
+        try {
+          boolean all = true;
+          for (int i = 0; i < requests.size(); ++i) {
+            if (!isResolvedSourceVersion(context.getRunnerParameters(), requests.get(i).getSourceVersion())) {
+              all = false;
+              continue;
+            }
+            try {
+              final String attached = attach(lease.getCodeBuildClient(), myJournal, fingerprints.get(i));
+              if (attached != null) {
+                myAttachedBuildIds.put(fingerprints.get(i), attached);
+                continue;
               }
+            } catch (Exception e) {
+              runningBuild.getBuildLogger().warning("Failed to check the " + names.get(i) + " build started by the previous attempt: " + e.getMessage());
             }
-          } finally {
-            log(runningBuild, getBlockEnd(c));
+            all = false;
           }
-        } else if (isWaitBuild(runnerParameters)) {
-          myCodeBuildBuilds.add(c);
+          return all;
+        } finally {
+          lease.close();
         }
-        return isInterrupted() ? BuildFinishedStatus.INTERRUPTED : BuildFinishedStatus.FINISHED_SUCCESS;
+      }
+
+      /**
+       * Returns the id of the journaled build started by the previous attempt of the step if it's still running.
+       * A finished build isn't re-attached to: the rerun may be meant to build again, e.g. after a flaky failure.
+       */
+      @Nullable
+      private String attach(@NotNull final AWSCodeBuild client, @NotNull CodeBuildBuildsJournal journal, @NotNull String fingerprint) {
+        final String key = getJournalKey(fingerprint);
+        final CodeBuildBuildsJournal.Entry entry = journal.get(key);
+        if (entry == null) return null;
+
+        final List<Build> builds = myClientsCache.getCallScheduler().call("BatchGetBuilds", new AWSCallScheduler.Call<List<Build>>() {
+          @Override
+          public List<Build> run() {
+            return client.batchGetBuilds(new BatchGetBuildsRequest().withIds(entry.codeBuildBuildId)).getBuilds();
+          }
+        });
+        if (!builds.isEmpty() && isInProgress(builds.get(0).getBuildStatus())) {
+          myAttachedBuilds.put(entry.codeBuildBuildId, entry);
+          return entry.codeBuildBuildId;
+        }
+        journal.remove(key);
+        return null;
+      }
+
+      @NotNull
+      private String getJournalKey(@NotNull String fingerprint) {
+        return CodeBuildBuildsJournal.getKey(runningBuild.getBuildTypeId(), context.getId(), fingerprint);
+      }
+
+      @NotNull
+      private CodeBuildBuildContext started(@NotNull String buildId,
+                                            @NotNull StartBuildRequest request,
+                                            @NotNull String fingerprint,
+                                            @NotNull String name,
+                                            @NotNull Map<String, String> runnerParameters) {
+        final String projectName = request.getProjectName();
+        final String region = runnerParameters.get(AWSCommonParams.REGION_NAME_PARAM);
+        final Build reused = myReusedBuilds.get(buildId);
+        final CodeBuildBuildsJournal.Entry attached = myAttachedBuilds.get(buildId);
+        if (attached != null) {
+          runningBuild.getBuildLogger().message(name + " re-attached to the build " + getBuildLink(buildId, region) + " started by the previous attempt");
+        } else if (reused == null) {
+          runningBuild.getBuildLogger().message(name + " build " + getBuildLink(buildId, region) + " started");
+        } else if (isInProgress(reused.getBuildStatus())) {
+          runningBuild.getBuildLogger().message(name + " attached to the identical build " + getBuildLink(buildId, region) + " started at " + reused.getStartTime());
+        } else {
+          runningBuild.getBuildLogger().message(name + " reuses the result of the identical build " + getBuildLink(buildId, region) + " finished at " + reused.getEndTime());
+        }
+        runningBuild.getBuildLogger().message("View the entire log in the AWS CloudWatch console " + getBuildLogLink(buildId, projectName, region));
+        final CodeBuildBuildContext c = new CodeBuildBuildContext(buildId, projectName, name, runnerParameters);
+        c.reused = reused != null;
+        if (attached != null) {
+          c.prevPhases.putAll(attached.prevPhases); // the same build is resumed, the phases are already in its log
+        }
+        if (myJournal != null && isResolvedSourceVersion(runnerParameters, request.getSourceVersion())) {
+          c.journalKey = getJournalKey(fingerprint);
+          journal(c, runningBuild);
+        }
+        return c;
+      }
+
+      /**
+       * Returns the project if the checkout directory is uploaded to its S3 source location
+       */
+      @Nullable
+      private ProjectInfo getBuildRevisionS3Project(@NotNull String projectName) {
+        final Map<String, String> params = context.getRunnerParameters();
+        if (!isUseBuildRevision(params)) return null;
+        final ProjectInfo project = myProjectsCache.getProject(params, projectName);
+        return project != null && SourceType.S3.toString().equals(project.getSourceType()) ? project : null;
       }
 
       @Nullable
       private String getSourceVersion(@NotNull String projectName) throws RunBuildException {
         final Map<String, String> params = context.getRunnerParameters();
         if (isUseBuildRevision(params)) {
-          final ProjectInfo project = getProject(params, projectName);
+          final ProjectInfo project = myProjectsCache.getProject(params, projectName);
           if (project == null) {
             throw new RunBuildException("No AWS CodeBuild project " + projectName + " found. Please check the settings.");
           }
@@ -117,22 +398,9 @@ public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuild
             return sourceVersion;
 
           } else if (SourceType.S3.toString().equals(project.getSourceType())) {
-            final File revision = prepareRevision();
-            if (revision == null) {
-              throw new RunBuildException("Unable to upload sources to the AWS S3: build checkout directory " + runningBuild.getCheckoutDirectory() + " is empty");
-            }
-            try {
-              return AWSCommonParams.withAWSClients(params, new AWSCommonParams.WithAWSClients<String, RuntimeException>() {
-                @Nullable
-                @Override
-                public String run(@NotNull AWSClients clients) throws RuntimeException {
-                  return clients.createS3Client().putObject(getBucketName(project.getSourceLocation()), getObjectKey(project.getSourceLocation()), revision).getVersionId();
-                }
-              });
-            } finally {
-              FileUtil.delete(revision);
-            }
+            return null; // the version of the uploaded checkout, see getBuildRevisionS3Project
           } else {
+            myProjectsCache.invalidate(params, projectName);
             throw new RunBuildException(CodeBuildConstants.USE_BUILD_REVISION_LABEL + " setting is supported only for Amazon S3 and GitHub AWS CodeBuild project source provider and can't be combined with " + project.getSourceType() + " source provider");
           }
         } else {
@@ -140,32 +408,41 @@ public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuild
         }
       }
 
-      @Nullable
-      private File prepareRevision() throws RunBuildException {
-        final File[] files = runningBuild.getCheckoutDirectory().listFiles();
-        if (files == null || files.length == 0) return null;
-        if (files.length == 1 && files[0].getName().endsWith(".zip")) {
-          return files[0];
-        } else {
-          final File revision = new File(runningBuild.getBuildTempDirectory() + "/" + runningBuild.getCheckoutDirectory().getName() + ".zip");
-          try {
-            ArchiveUtil.packZip(runningBuild.getCheckoutDirectory(), new ZipOutputStream(new FileOutputStream(revision)));
-          } catch (FileNotFoundException e) {
-            throw new RunBuildException("Failed to package the checkout directory content", e);
-          }
-          return revision;
+      @NotNull
+      private Collection<EnvironmentVariable> getEnvironmentVariables() {
+        final Map<String, String> runnerParameters = context.getRunnerParameters();
+        final Map<String, String> configParameters = runningBuild.getSharedConfigParameters();
+        final EnvironmentVariablesSelector.Result selected = new EnvironmentVariablesSelector(
+          getEnvIncludes(runnerParameters), getEnvExcludes(runnerParameters),
+          getInt(configParameters, CodeBuildConstants.ENV_MAX_VALUE_LENGTH_CONFIG_PARAM, CodeBuildConstants.DEFAULT_ENV_MAX_VALUE_LENGTH),
+          getInt(configParameters, CodeBuildConstants.ENV_SIZE_BUDGET_CONFIG_PARAM, CodeBuildConstants.DEFAULT_ENV_SIZE_BUDGET)
+        ).select(context.getBuildParameters().getSystemProperties());
+
+        final int passed = selected.variables.size() - (selected.payload.isEmpty() ? 0 : 1);
+        runningBuild.getBuildLogger().message("Will pass " + (passed + selected.payload.size()) + " build system properties as Environment variables to the AWS CodeBuild" +
+                                              (selected.excluded > 0 ? ", " + selected.excluded + " skipped by the name patterns" : ""));
+        if (!selected.payload.isEmpty()) {
+          runningBuild.getBuildLogger().message(selected.payload.size() + " large build system properties are passed gzipped and base64 encoded in the " + CodeBuildConstants.ENV_PAYLOAD_VARIABLE +
+                                                " Environment variable: " + StringUtil.join(selected.payload, ", "));
+        }
+        if (!selected.dropped.isEmpty()) {
+          runningBuild.getBuildLogger().warning("Build system properties exceeding the " + CodeBuildConstants.ENV_SIZE_BUDGET_CONFIG_PARAM + " size budget are not passed to the AWS CodeBuild: " +
+                                                StringUtil.join(selected.dropped, ", "));
         }
+        return selected.variables;
       }
 
       @NotNull
-      private Collection<EnvironmentVariable> getEnvironmentVariables() {
-        runningBuild.getBuildLogger().message("Will pass build system properties as Environment variables to the AWS CodeBuild");
-        return CollectionsUtil.convertCollection(context.getBuildParameters().getSystemProperties().entrySet(), new Converter<EnvironmentVariable, Map.Entry<String, String>>() {
-          @Override
-          public EnvironmentVariable createFrom(@NotNull Map.Entry<String, String> e) {
-            return new EnvironmentVariable().withName(e.getKey()).withValue(e.getValue());
-          }
-        });
+      private Collection<EnvironmentVariable> withOverrides(@NotNull Collection<EnvironmentVariable> environmentVariables, @NotNull Map<String, String> overrides) {
+        if (overrides.isEmpty()) return environmentVariables;
+        final List<EnvironmentVariable> res = new ArrayList<EnvironmentVariable>();
+        for (EnvironmentVariable v : environmentVariables) {
+          if (!overrides.containsKey(v.getName())) res.add(v);
+        }
+        for (Map.Entry<String, String> e : overrides.entrySet()) {
+          res.add(new EnvironmentVariable().withName(e.getKey()).withValue(e.getValue()));
+        }
+        return res;
       }
 
       @Nullable
@@ -190,6 +467,31 @@ public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuild
     };
   }
 
+  @NotNull
+  private static CodeBuildBuildsJournal getJournal(@NotNull AgentRunningBuild build) {
+    return new CodeBuildBuildsJournal(build.getAgentConfiguration().getCacheDirectory(CodeBuildConstants.JOURNAL_DIR));
+  }
+
+  /**
+   * Records the build and its reported phases for the step rerun to re-attach to it after the agent restart
+   */
+  private void journal(@NotNull CodeBuildBuildContext c, @NotNull AgentRunningBuild build) {
+    if (c.journalKey == null) return;
+    try {
+      getJournal(build).put(c.journalKey, c, build.getBuildId());
+      c.journaledPhases.clear();
+      c.journaledPhases.putAll(c.prevPhases);
+    } catch (IOException e) {
+      log(build, forContext(c, createTextMessage("Failed to journal " + getBuildString(c) + ": " + e.getMessage(), Status.WARNING)));
+    }
+  }
+
+  private void unjournal(@NotNull CodeBuildBuildContext c, @NotNull AgentRunningBuild build) {
+    if (c.journalKey == null) return;
+    getJournal(build).remove(c.journalKey);
+    c.journalKey = null;
+  }
+
   private void startContext(@NotNull CodeBuildBuildContext c, @NotNull AgentRunningBuild runningBuild) {
     log(runningBuild, getBlockStart(c));
     log(runningBuild, forContext(c, createTextMessage("Waiting for build " + c.codeBuildBuildId + " finish")));
@@ -197,12 +499,12 @@ public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuild
 
   @NotNull
   private BuildMessage1 getBlockStart(@NotNull CodeBuildBuildContext c) {
-    return forContext(c, createBlockStart(c.codeBuildProjectName, BLOCK_TYPE_TARGET));
+    return forContext(c, createBlockStart(c.name, BLOCK_TYPE_TARGET));
   }
 
   @NotNull
   private BuildMessage1 getBlockEnd(@NotNull CodeBuildBuildContext c) {
-    return forContext(c, createBlockEnd(c.codeBuildProjectName, BLOCK_TYPE_TARGET));
+    return forContext(c, createBlockEnd(c.name, BLOCK_TYPE_TARGET));
   }
 
   @NotNull
@@ -231,73 +533,270 @@ public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuild
     };
   }
 
+  @Override
+  public void agentShutdown() {
+    super.agentShutdown();
+    myTracker.dispose();
+    myClientsCache.dispose();
+  }
+
   @Override
   public void buildStarted(@NotNull AgentRunningBuild runningBuild) {
     super.buildStarted(runningBuild);
     myCodeBuildBuilds.clear();
+    myBuildInterrupted = new CompletableFuture<Void>();
+    myClientsCache.getCallScheduler().configure(runningBuild.getSharedConfigParameters());
+    myCallStatistics = myClientsCache.getCallScheduler().getStatistics();
+  }
+
+  @Override
+  public void beforeBuildInterrupted(@NotNull AgentRunningBuild runningBuild, @NotNull BuildInterruptReason reason) {
+    super.beforeBuildInterrupted(runningBuild, reason);
+    myBuildInterrupted.complete(null);
   }
 
   @Override
   public void beforeBuildFinish(@NotNull AgentRunningBuild build, @NotNull BuildFinishedStatus buildStatus) {
     super.beforeBuildFinish(build, buildStatus);
 
-    for (CodeBuildBuildContext c : myCodeBuildBuilds) {
+    if (build.getInterruptReason() != null) myBuildInterrupted.complete(null);
+    try {
+      await(new ArrayList<CodeBuildBuildContext>(myCodeBuildBuilds), build, myBuildInterrupted);
+    } finally {
+      myCodeBuildBuilds.clear();
+      reportRetries(build);
+    }
+  }
+
+  /**
+   * Logs the AWS calls retried during the build
+   */
+  private void reportRetries(@NotNull AgentRunningBuild build) {
+    final StringBuilder sb = new StringBuilder();
+    for (Map.Entry<String, long[]> e : myClientsCache.getCallScheduler().getStatistics().entrySet()) {
+      final long[] prev = myCallStatistics.get(e.getKey());
+      final long retries = e.getValue()[1] - (prev == null ? 0 : prev[1]);
+      final long throttled = e.getValue()[2] - (prev == null ? 0 : prev[2]);
+      if (retries <= 0) continue;
+      if (sb.length() > 0) sb.append(", ");
+      sb.append(e.getKey()).append(": ").append(retries).append(" (").append(throttled).append(" throttled)");
+    }
+    if (sb.length() > 0) {
+      build.getBuildLogger().message("Retried AWS calls " + sb);
+    }
+  }
+
+  /**
+   * Leaves waiting for the builds to the server tracker and releases the agent. The build ids are also reported
+   * as the build parameter for the tracker to resume after the server restart.
+   */
+  private void detach(@NotNull String stepId, @NotNull String buildIdsProperty, @NotNull String buildIds, @NotNull AgentRunningBuild build) {
+    final BuildProgressLogger logger = build.getBuildLogger();
+    logger.message(ServiceMessage.asString("setParameter", CollectionsUtil.asMap("name", "system." + buildIdsProperty, "value", buildIds)));
+    logger.message(ServiceMessage.asString(CodeBuildConstants.TRACK_SERVICE_MESSAGE, CollectionsUtil.asMap(
+      CodeBuildConstants.TRACK_STEP_ID_ATTRIBUTE, stepId,
+      CodeBuildConstants.TRACK_BUILD_IDS_ATTRIBUTE, buildIds)));
+    logger.message("Waiting for AWS CodeBuild builds finish on the TeamCity server, the agent is released");
+    logger.message(ServiceMessage.asString(CodeBuildConstants.DETACH_SERVICE_MESSAGE, Collections.<String, String>emptyMap()));
+  }
+
+  /**
+   * Waits for the builds to finish, stops the builds as soon as the interrupted future completes. Returns true if all the builds succeeded.
+   * Artifacts of the succeeded builds are downloaded in the background, so that the other builds are still handled meanwhile.
+   */
+  boolean await(@NotNull List<CodeBuildBuildContext> contexts, @NotNull final AgentRunningBuild build, @NotNull CompletableFuture<?> interrupted) {
+    final CodeBuildPollScheduler scheduler = CodeBuildPollScheduler.create(build);
+    final Map<CodeBuildBuildContext, CompletableFuture<Void>> tracked = new LinkedHashMap<CodeBuildBuildContext, CompletableFuture<Void>>();
+    final Map<CodeBuildBuildContext, CompletableFuture<Void>> downloads = new LinkedHashMap<CodeBuildBuildContext, CompletableFuture<Void>>();
+    for (CodeBuildBuildContext c : contexts) {
       startContext(c, build);
+      tracked.put(c, myTracker.track(c, scheduler, createListener(build)));
     }
 
-    while (!myCodeBuildBuilds.isEmpty()) {
-      for (CodeBuildBuildContext next : new ArrayList<CodeBuildBuildContext>(myCodeBuildBuilds)) {
-        final boolean buildInterrupted = build.getInterruptReason() != null;
-        boolean finished = false;
+    ExecutorService downloader = null;
+    boolean succeeded = true;
+    try {
+      while (!tracked.isEmpty() || !downloads.isEmpty()) {
+        if (interrupted.isDone()) {
+          interruptAll(tracked, downloads, build);
+          return false;
+        }
+
+        final List<CompletableFuture<?>> awaited = new ArrayList<CompletableFuture<?>>(tracked.values());
+        awaited.addAll(downloads.values());
+        awaited.add(interrupted);
         try {
-          finished = buildInterrupted || finished(next, build);
-          if (buildInterrupted) {
-            interrupt(next, build);
-          }
-        } finally {
-          if (finished) {
-            myCodeBuildBuilds.remove(next);
-            log(build, getBlockEnd(next));
+          CompletableFuture.anyOf(awaited.toArray(new CompletableFuture<?>[0])).get();
+        } catch (ExecutionException ignored) {
+          // reported below
+        } catch (InterruptedException e) {
+          // the builds mustn't outlive the step, the interrupted status is restored once they are stopped
+          interruptAll(tracked, downloads, build);
+          Thread.currentThread().interrupt();
+          return false;
+        }
+
+        final Iterator<Map.Entry<CodeBuildBuildContext, CompletableFuture<Void>>> it = tracked.entrySet().iterator();
+        while (it.hasNext()) {
+          final Map.Entry<CodeBuildBuildContext, CompletableFuture<Void>> e = it.next();
+          if (!e.getValue().isDone()) continue;
+          it.remove();
+          final CodeBuildBuildContext c = e.getKey();
+          try {
+            e.getValue().get();
+            final boolean buildSucceeded = c.buildStatus != null && isSucceeded(c.buildStatus);
+            succeeded &= buildSucceeded;
+            if (buildSucceeded && isDownloadArtifacts(c.params)) {
+              if (downloader == null) {
+                downloader = Executors.newFixedThreadPool(MAX_CONCURRENT_DOWNLOADS, new NamedThreadFactory("AWS CodeBuild artifacts publisher"));
+              }
+              downloads.put(c, CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                  downloadArtifacts(c, build);
+                }
+              }, downloader));
+              continue; // the block is closed when the download completes
+            }
+          } catch (Exception ex) {
+            succeeded = false;
+            final Throwable cause = ex instanceof ExecutionException ? ex.getCause() : ex;
+            log(build, forContext(c, createTextMessage("Failed to get " + getBuildString(c) + " status: " + cause.getMessage(), Status.ERROR)));
           }
+          log(build, getBlockEnd(c));
+        }
+
+        final Iterator<Map.Entry<CodeBuildBuildContext, CompletableFuture<Void>>> downloadsIt = downloads.entrySet().iterator();
+        while (downloadsIt.hasNext()) {
+          final Map.Entry<CodeBuildBuildContext, CompletableFuture<Void>> e = downloadsIt.next();
+          if (!e.getValue().isDone()) continue;
+          downloadsIt.remove();
+          log(build, getBlockEnd(e.getKey())); // download failures are reported by downloadArtifacts
+        }
+
+        if (!succeeded && !tracked.isEmpty() && isFailFast(tracked.keySet().iterator().next().params)) {
+          stopAll(tracked, build);
         }
       }
-      if (build.getInterruptReason() == null) {
+      return succeeded;
+    } finally {
+      for (CompletableFuture<Void> f : tracked.values()) {
+        f.cancel(false);
+      }
+      if (downloader != null) downloader.shutdownNow();
+    }
+  }
+
+  /**
+   * Stops the builds and ends the blocks of the artifacts downloads in progress, the downloads are cancelled by the caller
+   */
+  private void interruptAll(@NotNull Map<CodeBuildBuildContext, CompletableFuture<Void>> tracked,
+                            @NotNull Map<CodeBuildBuildContext, CompletableFuture<Void>> downloads,
+                            @NotNull AgentRunningBuild build) {
+    stopAll(tracked, build);
+    for (CodeBuildBuildContext c : downloads.keySet()) {
+      log(build, forContext(c, createTextMessage("Artifacts download of " + getBuildString(c) + " is interrupted", Status.WARNING)));
+      log(build, getBlockEnd(c));
+    }
+    downloads.clear();
+  }
+
+  /**
+   * Stops tracking and stops the builds, at most {@link #MAX_CONCURRENT_STOPS} at a time, waits for the StopBuild calls to complete
+   */
+  private void stopAll(@NotNull Map<CodeBuildBuildContext, CompletableFuture<Void>> tracked, @NotNull final AgentRunningBuild build) {
+    final List<CodeBuildBuildContext> contexts = new ArrayList<CodeBuildBuildContext>(tracked.keySet());
+    for (CompletableFuture<Void> f : tracked.values()) {
+      f.cancel(false);
+    }
+    tracked.clear();
+    if (contexts.isEmpty()) return;
+
+    final ExecutorService executor = Executors.newFixedThreadPool(Math.min(contexts.size(), MAX_CONCURRENT_STOPS), new NamedThreadFactory("AWS CodeBuild builds stopper"));
+    try {
+      final List<Future<?>> stops = new ArrayList<Future<?>>();
+      for (final CodeBuildBuildContext c : contexts) {
+        stops.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            interrupt(c, build);
+          }
+        }));
+      }
+
+      final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(STOP_TIMEOUT_SECONDS);
+      for (int i = 0; i < contexts.size(); ++i) {
+        final CodeBuildBuildContext c = contexts.get(i);
         try {
-          Thread.sleep(CodeBuildConstants.POLL_INTERVAL);
+          stops.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+          log(build, forContext(c, createTextMessage("Failed to stop " + getBuildString(c) + ": " + e.getCause().getMessage(), Status.WARNING)));
+        } catch (TimeoutException e) {
+          log(build, forContext(c, createTextMessage("Failed to stop " + getBuildString(c) + " in " + STOP_TIMEOUT_SECONDS + " seconds", Status.WARNING)));
         } catch (InterruptedException e) {
-          break;
+          Thread.currentThread().interrupt();
+        } finally {
+          log(build, getBlockEnd(c));
         }
       }
+    } finally {
+      executor.shutdownNow();
     }
-    myCodeBuildBuilds.clear();
   }
 
-  private boolean finished(@NotNull final CodeBuildBuildContext c, @NotNull AgentRunningBuild build) {
-    final List<Build> builds = AWSCommonParams.withAWSClients(c.params, new AWSCommonParams.WithAWSClients<List<Build>, RuntimeException>() {
-      @Nullable
+  private void downloadArtifacts(@NotNull CodeBuildBuildContext c, @NotNull AgentRunningBuild build) {
+    if (c.artifactsLocation == null) {
+      log(build, forContext(c, createTextMessage(getBuildString(c) + " has no artifacts to publish", Status.WARNING)));
+      return;
+    }
+    try {
+      myArtifactsDownloader.download(c, build);
+    } catch (Exception e) {
+      log(build, forContext(c, createTextMessage("Failed to download " + getBuildString(c) + " artifacts from " + c.artifactsLocation + ": " + e.getMessage(), Status.ERROR)));
+    }
+  }
+
+  @NotNull
+  private CodeBuildBuildsTracker.Listener createListener(@NotNull final AgentRunningBuild build) {
+    return new CodeBuildBuildsTracker.Listener() {
       @Override
-      public List<Build> run(@NotNull AWSClients clients) throws RuntimeException {
-        return clients.createCodeBuildClient().batchGetBuilds(new BatchGetBuildsRequest().withIds(c.codeBuildBuildId)).getBuilds();
+      public boolean update(@NotNull CodeBuildBuildContext c, @Nullable Build codeBuildBuild) {
+        return finished(c, codeBuildBuild, build);
       }
-    });
+    };
+  }
 
-    if (builds == null || builds.isEmpty()) {
+  private boolean finished(@NotNull CodeBuildBuildContext c, @Nullable Build codeBuildBuild, @NotNull AgentRunningBuild build) {
+    if (codeBuildBuild == null) {
       log(build, forContext(c, createTextMessage("No AWS CodeBuild build with id=" + c.codeBuildBuildId + " found", Status.WARNING)));
       return true;
     }
 
-    if (builds.size() > 1) {
-      log(build, forContext(c, createTextMessage("Found several AWS CodeBuild builds with id=" + c.codeBuildBuildId + ". Will process the first one.", Status.WARNING)));
-    }
-
-    final Build codeBuildBuild = builds.iterator().next();
+    boolean logTruncated = isStreamLogs(c.params) && myLogsTailer.tail(c, codeBuildBuild, build);
 
     reportPhases(codeBuildBuild, c, build);
 
+    if (!codeBuildBuild.getBuildComplete() && isFailFast(c.params)) {
+      final BuildPhase failedPhase = getFailedPhase(codeBuildBuild);
+      if (failedPhase != null) {
+        failFast(c, failedPhase, build);
+        return true;
+      }
+    }
+
     if (codeBuildBuild.getBuildComplete()) {
-      // import logs in case of failure?
+      unjournal(c, build);
+      if (logTruncated) {
+        logTruncated = drainLog(c, codeBuildBuild, build);
+      }
+      if (logTruncated) {
+        log(build, forContext(c, createTextMessage("Build log is too long to be imported, view the entire log in the AWS CloudWatch console " + getBuildLogLink(c.codeBuildBuildId, c.codeBuildProjectName, c.params.get(AWSCommonParams.REGION_NAME_PARAM)), Status.WARNING)));
+      }
       final String format = getBuildString(c) + " %s " + getBuildLink(c.codeBuildBuildId, c.params.get(AWSCommonParams.REGION_NAME_PARAM));
       final String status = codeBuildBuild.getBuildStatus();
+      c.buildStatus = status;
+      c.artifactsLocation = codeBuildBuild.getArtifacts() == null ? null : codeBuildBuild.getArtifacts().getLocation();
+      reportTimes(codeBuildBuild, c, build);
       if (isSucceeded(status)) {
         log(build, (forContext(c, createTextMessage(String.format(format, "succeeded")))));
       } else {
@@ -305,19 +804,69 @@ public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuild
       }
       return true;
     }
+    if (!c.prevPhases.equals(c.journaledPhases)) {
+      journal(c, build);
+    }
     return false;
   }
 
+  /**
+   * Imports the rest of the completed build log in chunks of the per poll lines limit, as its end usually holds the failure output.
+   * Returns true if the log is still longer than the lines limit after completion.
+   */
+  private boolean drainLog(@NotNull CodeBuildBuildContext c, @NotNull Build codeBuildBuild, @NotNull AgentRunningBuild build) {
+    final Map<String, String> configParams = build.getSharedConfigParameters();
+    final int maxLines = getInt(configParams, CodeBuildConstants.MAX_LOG_LINES_AFTER_COMPLETION_CONFIG_PARAM, CodeBuildConstants.DEFAULT_MAX_LOG_LINES_AFTER_COMPLETION);
+    final int chunk = Math.max(1, getInt(configParams, CodeBuildConstants.MAX_LOG_LINES_PER_POLL_CONFIG_PARAM, CodeBuildConstants.DEFAULT_MAX_LOG_LINES_PER_POLL));
+    for (int lines = 0; lines < maxLines; lines += chunk) {
+      if (!myLogsTailer.tail(c, codeBuildBuild, build)) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Stops the build which has a failed phase without waiting for the remaining phases
+   */
+  private void failFast(@NotNull CodeBuildBuildContext c, @NotNull BuildPhase failedPhase, @NotNull AgentRunningBuild build) {
+    c.buildStatus = failedPhase.getPhaseStatus();
+    log(build, forContext(c, createTextMessage(getBuildString(c) + " " + failedPhase.getPhaseType() + " phase finished with status " + failedPhase.getPhaseStatus() + ", not waiting for the remaining phases " +
+                                               getBuildLink(c.codeBuildBuildId, c.params.get(AWSCommonParams.REGION_NAME_PARAM)), Status.ERROR)));
+    try {
+      interrupt(c, build);
+    } catch (Exception e) {
+      log(build, forContext(c, createTextMessage("Failed to stop " + getBuildString(c) + ": " + e.getMessage(), Status.WARNING)));
+    }
+  }
+
+  @Nullable
+  private static BuildPhase getFailedPhase(@NotNull Build codeBuildBuild) {
+    if (codeBuildBuild.getPhases() == null) return null;
+    for (BuildPhase phase : codeBuildBuild.getPhases()) {
+      final String status = phase.getPhaseStatus();
+      if (status != null && !isInProgress(status) && !isSucceeded(status)) return phase;
+    }
+    return null;
+  }
+
   private void interrupt(@NotNull final CodeBuildBuildContext c, @NotNull AgentRunningBuild build) {
+    unjournal(c, build);
+    if (c.reused) {
+      log(build, forContext(c, createTextMessage(getBuildString(c) + " wasn't started by this step and is left running", Status.WARNING)));
+      return;
+    }
     log(build, forContext(c, createTextMessage("Stopping " + getBuildString(c), Status.WARNING)));
-    AWSCommonParams.withAWSClients(c.params, new AWSCommonParams.WithAWSClients<Void, RuntimeException>() {
-      @Nullable
-      @Override
-      public Void run(@NotNull AWSClients clients) throws RuntimeException {
-        clients.createCodeBuildClient().stopBuild(new StopBuildRequest().withId(c.codeBuildBuildId));
-        return null;
-      }
-    });
+    final AWSClientsCache.Lease lease = myClientsCache.acquire(c.params);
+    try {
+      final AWSCodeBuild client = lease.getCodeBuildClient();
+      myClientsCache.getCallScheduler().call("StopBuild", STOP_BUILD_MAX_RETRIES, new AWSCallScheduler.Call<StopBuildResult>() {
+        @Override
+        public StopBuildResult run() {
+          return client.stopBuild(new StopBuildRequest().withId(c.codeBuildBuildId));
+        }
+      });
+    } finally {
+      lease.close();
+    }
   }
 
   @NotNull
@@ -325,7 +874,7 @@ public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuild
     return "Build " + c.codeBuildBuildId;
   }
 
-  private void reportPhases(@NotNull Build codeBuildBuild, @NotNull CodeBuildBuildContext c, @NotNull AgentRunningBuild build) {
+  void reportPhases(@NotNull Build codeBuildBuild, @NotNull CodeBuildBuildContext c, @NotNull AgentRunningBuild build) {
     if (codeBuildBuild.getPhases() == null || codeBuildBuild.getPhases().size() <= c.prevPhases.size()) return;
 
     for (BuildPhase phase : codeBuildBuild.getPhases()) {
@@ -342,14 +891,42 @@ public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuild
       } else {
         c.prevPhases.put(phaseName, status);
 
+        if (phase.getDurationInSeconds() != null) {
+          reportStatistic(c, getPhaseStatisticKey(c.name, phaseName), TimeUnit.SECONDS.toMillis(phase.getDurationInSeconds()), build);
+        }
+
         if (isSucceeded(status)) {
           log(build, forContext(c, createTextMessage(String.format(format, "succeeded"))));
         } else {
           log(build, forContext(c, createTextMessage(String.format(format, isFailed(status) ? "failed" : "finished with status " + status), Status.ERROR)));
-          log(build, forContext(c, createBuildProblemMessage(createBuildProblem(phase, c.params, build.getCheckoutDirectory().getAbsolutePath()))));
+          log(build, forContext(c, createBuildProblemMessage(createBuildProblem(phase, c, build.getCheckoutDirectory().getAbsolutePath()))));
+        }
+      }
+    }
+  }
+
+  /**
+   * Reports the time before the build was provisioned and the whole build duration in milliseconds
+   */
+  private void reportTimes(@NotNull Build codeBuildBuild, @NotNull CodeBuildBuildContext c, @NotNull AgentRunningBuild build) {
+    final Date startTime = codeBuildBuild.getStartTime();
+    if (startTime == null) return;
+
+    if (codeBuildBuild.getPhases() != null) {
+      for (BuildPhase phase : codeBuildBuild.getPhases()) {
+        if (CodeBuildConstants.PROVISIONING_PHASE.equals(phase.getPhaseType()) && phase.getStartTime() != null) {
+          reportStatistic(c, getStatisticKey(c.name, CodeBuildConstants.QUEUED_TIME_STATISTIC), phase.getStartTime().getTime() - startTime.getTime(), build);
+          break;
         }
       }
     }
+    if (codeBuildBuild.getEndTime() != null) {
+      reportStatistic(c, getStatisticKey(c.name, CodeBuildConstants.TOTAL_DURATION_STATISTIC), codeBuildBuild.getEndTime().getTime() - startTime.getTime(), build);
+    }
+  }
+
+  private void reportStatistic(@NotNull CodeBuildBuildContext c, @NotNull String key, long value, @NotNull AgentRunningBuild build) {
+    build.getBuildLogger().getFlowLogger(c.codeBuildBuildId).message(new BuildStatisticValue(key, Math.max(0, value)).asString());
   }
 
   private boolean isPhaseReported(@NotNull String phaseName, @NotNull CodeBuildBuildContext c) {
@@ -366,40 +943,17 @@ public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuild
   }
 
   @NotNull
-  private BuildProblemData createBuildProblem(@NotNull BuildPhase failedPhase, @NotNull Map<String, String> runnerParams, @NotNull String checkoutDir) {
+  private static BuildProblemData createBuildProblem(@NotNull BuildPhase failedPhase, @NotNull CodeBuildBuildContext c, @NotNull String checkoutDir) {
     return BuildProblemData.createBuildProblem(
-      getProblemIdentity(checkoutDir, failedPhase, runnerParams),
+      getProblemIdentity(checkoutDir, failedPhase, c.name, c.params),
       CodeBuildConstants.BUILD_PROBLEM_TYPE,
-      getProblemDescription(failedPhase, runnerParams));
+      getPhaseProblemDescription(failedPhase, c.name));
   }
 
   @NotNull
-  private String getProblemDescription(@NotNull BuildPhase failedPhase, @NotNull Map<String, String> runnerParams) {
-    final StringBuilder res = new StringBuilder(getProjectName(runnerParams));
-    res.append(" ").append(failedPhase.getPhaseType()).append(" phase ");
-    if (failedPhase.getContexts().isEmpty()) {
-      if (isFailed(failedPhase.getPhaseStatus())) {
-        res.append("failed");
-      } else {
-        res.append("finished with status: ").append(failedPhase.getPhaseStatus());
-      }
-    } else {
-      res.append(": ");
-      for (int i = 0; i < failedPhase.getContexts().size(); ++i) {
-        if (i > 0) {
-          res.append("; ");
-        }
-        res.append(failedPhase.getContexts().get(i).getMessage());
-      }
-    }
-    return res.toString();
-  }
-
-
-  @NotNull
-  private String getProblemIdentity(@NotNull String checkoutDir, @NotNull BuildPhase failedPhase, @NotNull Map<String, String> runnerParams) {
+  static String getProblemIdentity(@NotNull String checkoutDir, @NotNull BuildPhase failedPhase, @NotNull String name, @NotNull Map<String, String> runnerParams) {
     final ArrayList<String> otherParts = new ArrayList<String>();
-    otherParts.add(getProjectName(runnerParams));
+    otherParts.add(name);
     otherParts.add(failedPhase.getPhaseType());
     otherParts.add(failedPhase.getPhaseStatus());
     for (PhaseContext phaseContext : failedPhase.getContexts()) {
@@ -408,32 +962,4 @@ public class CodeBuildRunner extends AgentLifeCycleAdapter implements AgentBuild
     }
     return String.valueOf(AWSCommonParams.calculateIdentity(checkoutDir, runnerParams, otherParts));
   }
-
-  private static final class CodeBuildBuildContext {
-    @NotNull private final String codeBuildBuildId;
-    @NotNull private final String codeBuildProjectName;
-    @NotNull private final Map<String, String> params;
-    @NotNull private Map<String, String> prevPhases = new HashMap<String, String>();
-
-    private CodeBuildBuildContext(@NotNull String codeBuildBuildId, @NotNull String codeBuildProjectName, @NotNull Map<String, String> params) {
-      this.codeBuildBuildId = codeBuildBuildId;
-      this.codeBuildProjectName = codeBuildProjectName;
-      this.params = params;
-    }
-
-    @Override
-    public boolean equals(Object o) {
-      if (this == o) return true;
-      if (o == null || getClass() != o.getClass()) return false;
-
-      CodeBuildBuildContext that = (CodeBuildBuildContext) o;
-
-      return codeBuildBuildId.equals(that.codeBuildBuildId);
-    }
-
-    @Override
-    public int hashCode() {
-      return codeBuildBuildId.hashCode();
-    }
-  }
-}
\ No newline at end of file
+}
@@ -0,0 +1,237 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import jetbrains.buildServer.RunBuildException;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import static jetbrains.buildServer.aws.codebuild.CodeBuildConstants.*;
+import static jetbrains.buildServer.aws.codebuild.CodeBuildUtil.*;
+
+/**
+ * Packages the build checkout directory and uploads it to the AWS CodeBuild project S3 source location.
+ *
+ * Only the files matching the step include and exclude rules (and optionally .gitignore and .dockerignore) are packed.
+ *
+ * With %codebuild.source.upload.skip.unchanged% the content digest is stored in the object metadata,
+ * and the upload is skipped if the current object already has the same digest.
+ *
+ * @author vbedrosova
+ */
+final class CodeBuildSourceUploader {
+  @NotNull
+  private final AWSClientsCache myClientsCache;
+
+  CodeBuildSourceUploader(@NotNull AWSClientsCache clientsCache) {
+    myClientsCache = clientsCache;
+  }
+
+  /**
+   * Lists the checkout directory files to upload, the same checkout may be uploaded to several projects
+   */
+  @NotNull
+  Checkout prepare(@NotNull AgentRunningBuild runningBuild, @NotNull Map<String, String> params) throws RunBuildException {
+    final File checkoutDir = runningBuild.getCheckoutDirectory();
+    final File[] files = checkoutDir.listFiles();
+    if (files == null || files.length == 0) {
+      throw new RunBuildException("Unable to upload sources to the AWS S3: build checkout directory " + checkoutDir + " is empty");
+    }
+
+    final List<SourceTreeWalker.Entry> entries = walk(checkoutDir, params);
+    if (entries.isEmpty()) {
+      throw new RunBuildException("Unable to upload sources to the AWS S3: no files in the build checkout directory " + checkoutDir + " match the include and exclude rules");
+    }
+    return new Checkout(files, entries);
+  }
+
+  /**
+   * Returns the uploaded object version id
+   */
+  @Nullable
+  String upload(@NotNull AgentRunningBuild runningBuild, @NotNull Map<String, String> params, @NotNull CodeBuildUtil.ProjectInfo project, @NotNull Checkout checkout) throws RunBuildException {
+    final AWSClientsCache.Lease lease = myClientsCache.acquire(params);
+    try {
+      return upload(runningBuild, project, checkout, lease.getS3Client());
+    } finally {
+      lease.close();
+    }
+  }
+
+  @Nullable
+  private String upload(@NotNull AgentRunningBuild runningBuild, @NotNull CodeBuildUtil.ProjectInfo project, @NotNull Checkout checkout, @NotNull AmazonS3 s3) throws RunBuildException {
+    final File checkoutDir = runningBuild.getCheckoutDirectory();
+    final File[] files = checkout.files;
+    final List<SourceTreeWalker.Entry> entries = checkout.entries;
+
+    final String bucket = getBucketName(project.getSourceLocation());
+    final String key = getObjectKey(project.getSourceLocation());
+    if (bucket == null || key == null) {
+      throw new RunBuildException("Unable to upload sources to the AWS S3: unexpected AWS CodeBuild project " + project.getName() + " source location " + project.getSourceLocation());
+    }
+
+    final Map<String, String> configParams = runningBuild.getSharedConfigParameters();
+    final ObjectMetadata metadata = new ObjectMetadata();
+    if (Boolean.parseBoolean(configParams.get(SOURCE_UPLOAD_SKIP_UNCHANGED_CONFIG_PARAM))) {
+      final String digest = checkout.getDigest();
+      final ObjectMetadata existing = getExistingMetadata(s3, bucket, key);
+      if (existing != null && digest.equals(existing.getUserMetaDataOf(SOURCE_DIGEST_METADATA_KEY))) {
+        runningBuild.getBuildLogger().message("Checkout directory content is unchanged since the last upload, will use the existing AWS S3 object " + bucket + "/" + key +
+                                              (existing.getVersionId() == null ? "" : " version " + existing.getVersionId()));
+        if (isSingleZip(files)) {
+          FileUtil.delete(files[0]);
+        }
+        return existing.getVersionId();
+      }
+      metadata.addUserMetadata(SOURCE_DIGEST_METADATA_KEY, digest);
+    }
+
+    if (isSingleZip(files)) {
+      try {
+        return s3.putObject(new PutObjectRequest(bucket, key, files[0]).withMetadata(metadata)).getVersionId();
+      } finally {
+        FileUtil.delete(files[0]);
+      }
+    }
+
+    if (Boolean.parseBoolean(configParams.get(SOURCE_UPLOAD_STREAMING_CONFIG_PARAM))) {
+      return uploadStreaming(runningBuild, entries, s3, bucket, key, metadata);
+    }
+
+    final File revision = new File(runningBuild.getBuildTempDirectory() + "/" + checkoutDir.getName() + ".zip");
+    try {
+      final FileOutputStream out = new FileOutputStream(revision);
+      try {
+        pack(runningBuild, entries, out);
+      } finally {
+        FileUtil.close(out);
+      }
+      return s3.putObject(new PutObjectRequest(bucket, key, revision).withMetadata(metadata)).getVersionId();
+    } catch (IOException e) {
+      throw new RunBuildException("Failed to package the checkout directory content", e);
+    } finally {
+      FileUtil.delete(revision);
+    }
+  }
+
+  /**
+   * Packs the checkout directory directly into the S3 multipart upload, no temporary archive is created
+   */
+  @Nullable
+  private String uploadStreaming(@NotNull AgentRunningBuild runningBuild,
+                                 @NotNull List<SourceTreeWalker.Entry> entries,
+                                 @NotNull AmazonS3 s3,
+                                 @NotNull String bucket,
+                                 @NotNull String key,
+                                 @NotNull ObjectMetadata metadata) throws RunBuildException {
+    final Map<String, String> configParams = runningBuild.getSharedConfigParameters();
+    final int partSize = getInt(configParams, SOURCE_UPLOAD_PART_SIZE_MB_CONFIG_PARAM, DEFAULT_SOURCE_UPLOAD_PART_SIZE_MB) * 1024 * 1024;
+    final int threads = getInt(configParams, SOURCE_UPLOAD_THREADS_CONFIG_PARAM, DEFAULT_SOURCE_UPLOAD_THREADS);
+
+    final S3MultipartUploadStream upload = new S3MultipartUploadStream(s3, bucket, key, metadata, partSize, threads);
+    try {
+      pack(runningBuild, entries, upload);
+      return upload.complete().getVersionId();
+    } catch (IOException e) {
+      final RunBuildException failure = new RunBuildException("Failed to upload the checkout directory content to the AWS S3", e);
+      abort(upload, failure);
+      throw failure;
+    } catch (RuntimeException | Error e) {
+      abort(upload, e);
+      throw e;
+    }
+  }
+
+  /**
+   * The checkout directory holds a ready archive which is uploaded as is and then deleted
+   */
+  private static boolean isSingleZip(@NotNull File[] files) {
+    return files.length == 1 && files[0].getName().endsWith(".zip");
+  }
+
+  /**
+   * Aborts the failed upload keeping the original failure
+   */
+  private static void abort(@NotNull S3MultipartUploadStream upload, @NotNull Throwable failure) {
+    try {
+      upload.abort();
+    } catch (Exception e) {
+      failure.addSuppressed(e);
+    }
+  }
+
+  private static void pack(@NotNull AgentRunningBuild runningBuild, @NotNull List<SourceTreeWalker.Entry> entries, @NotNull OutputStream out) throws IOException {
+    final Map<String, String> configParams = runningBuild.getSharedConfigParameters();
+    final String storedExtensions = configParams.get(SOURCE_ZIP_STORED_EXTENSIONS_CONFIG_PARAM);
+    final long cacheSizeMb = getLong(configParams, SOURCE_ZIP_CACHE_SIZE_MB_CONFIG_PARAM, 0);
+    new ParallelZipPacker(
+      getInt(configParams, SOURCE_ZIP_THREADS_CONFIG_PARAM, Runtime.getRuntime().availableProcessors()),
+      getInt(configParams, SOURCE_ZIP_LEVEL_CONFIG_PARAM, Deflater.DEFAULT_COMPRESSION),
+      Arrays.asList((storedExtensions == null ? DEFAULT_SOURCE_ZIP_STORED_EXTENSIONS : storedExtensions).split(",")),
+      runningBuild.getBuildTempDirectory(),
+      cacheSizeMb > 0 ? new ZipEntryCache(runningBuild.getAgentConfiguration().getCacheDirectory(SOURCE_ZIP_CACHE_DIR), cacheSizeMb * 1024 * 1024) : null
+    ).pack(entries, out);
+  }
+
+  @NotNull
+  private static List<SourceTreeWalker.Entry> walk(@NotNull File checkoutDir, @NotNull Map<String, String> params) throws RunBuildException {
+    try {
+      return new SourceTreeWalker(new SourcePathFilter(getSourceIncludes(params), getSourceExcludes(params)), isUseIgnoreFiles(params)).walk(checkoutDir);
+    } catch (IOException e) {
+      throw new RunBuildException("Failed to list the checkout directory content", e);
+    }
+  }
+
+
+  @Nullable
+  private static ObjectMetadata getExistingMetadata(@NotNull AmazonS3 s3, @NotNull String bucket, @NotNull String key) {
+    try {
+      return s3.getObjectMetadata(bucket, key);
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404) return null;
+      throw e;
+    }
+  }
+
+  /**
+   * The checkout directory content to upload
+   */
+  static final class Checkout {
+    @NotNull private final File[] files;
+    @NotNull private final List<SourceTreeWalker.Entry> entries;
+    @Nullable private String digest;
+
+    private Checkout(@NotNull File[] files, @NotNull List<SourceTreeWalker.Entry> entries) {
+      this.files = files;
+      this.entries = entries;
+    }
+
+    /**
+     * Returns the content digest, calculated once as all the files are read
+     */
+    @NotNull
+    String getDigest() throws RunBuildException {
+      if (digest == null) {
+        try {
+          digest = CheckoutDirectoryDigest.compute(entries);
+        } catch (IOException e) {
+          throw new RunBuildException("Failed to calculate the checkout directory content digest", e);
+        }
+      }
+      return digest;
+    }
+  }
+}
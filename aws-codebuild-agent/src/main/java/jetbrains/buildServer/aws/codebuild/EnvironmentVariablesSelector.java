@@ -0,0 +1,174 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.model.EnvironmentVariable;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Selects the build system properties passed to the AWS CodeBuild build as environment variables.
+ *
+ * Properties are filtered by the name patterns ('*' matches any characters), the values longer than maxValueLength
+ * and then the largest values while the variables exceed the size budget are moved to the single gzipped and base64 encoded
+ * {@link CodeBuildConstants#ENV_PAYLOAD_VARIABLE} in the UTF-8 java properties format. The largest payload values are dropped
+ * if even the payload doesn't fit the budget. Neither the value length nor the size is limited if the limit isn't positive.
+ *
+ * @author vbedrosova
+ */
+final class EnvironmentVariablesSelector {
+  @NotNull private final List<Pattern> myIncludes;
+  @NotNull private final List<Pattern> myExcludes;
+  private final int myMaxValueLength;
+  private final int mySizeBudget;
+
+  EnvironmentVariablesSelector(@NotNull List<String> includes, @NotNull List<String> excludes, int maxValueLength, int sizeBudget) {
+    myIncludes = compile(includes);
+    myExcludes = compile(excludes);
+    myMaxValueLength = maxValueLength > 0 ? maxValueLength : Integer.MAX_VALUE;
+    mySizeBudget = sizeBudget > 0 ? sizeBudget : Integer.MAX_VALUE;
+  }
+
+  @NotNull
+  Result select(@NotNull Map<String, String> systemProperties) {
+    final Result res = new Result();
+    final Map<String, String> inline = new TreeMap<String, String>();
+    final Map<String, String> payload = new TreeMap<String, String>();
+    int size = 0;
+    for (Map.Entry<String, String> e : systemProperties.entrySet()) {
+      if (!isSelected(e.getKey())) {
+        ++res.excluded;
+        continue;
+      }
+      final String value = e.getValue() == null ? "" : e.getValue();
+      if (value.length() > myMaxValueLength) {
+        payload.put(e.getKey(), value);
+      } else {
+        inline.put(e.getKey(), value);
+        size += getSize(e.getKey(), value);
+      }
+    }
+
+    // move the largest values to the payload until the variables with the payload fit the budget,
+    // the values are moved in batches of at least the excess size as the payload is re-encoded after each batch
+    final List<Map.Entry<String, String>> bySize = new ArrayList<Map.Entry<String, String>>(inline.entrySet());
+    Collections.sort(bySize, BY_SIZE_DESCENDING);
+    String encoded = encode(payload);
+    int total = size + getPayloadSize(encoded);
+    for (int i = 0; total > mySizeBudget && i < bySize.size(); ) {
+      final int excess = total - mySizeBudget;
+      for (int moved = 0; moved < excess && i < bySize.size(); ++i) {
+        final Map.Entry<String, String> e = bySize.get(i);
+        final int entrySize = getSize(e.getKey(), e.getValue());
+        payload.put(e.getKey(), e.getValue());
+        size -= entrySize;
+        moved += entrySize;
+      }
+      encoded = encode(payload);
+      total = size + getPayloadSize(encoded);
+    }
+    inline.keySet().removeAll(payload.keySet());
+
+    if (total > mySizeBudget) {
+      // drop the largest payload values until the payload fits the budget, in batches the same way
+      final List<Map.Entry<String, String>> payloadBySize = new ArrayList<Map.Entry<String, String>>();
+      for (Map.Entry<String, String> e : payload.entrySet()) {
+        payloadBySize.add(new AbstractMap.SimpleImmutableEntry<String, String>(e)); // the map entries change on removal
+      }
+      Collections.sort(payloadBySize, BY_SIZE_DESCENDING);
+      for (int i = 0; total > mySizeBudget && i < payloadBySize.size(); ) {
+        final int excess = total - mySizeBudget;
+        for (int dropped = 0; dropped < excess && i < payloadBySize.size(); ++i) {
+          final Map.Entry<String, String> e = payloadBySize.get(i);
+          payload.remove(e.getKey());
+          res.dropped.add(e.getKey());
+          dropped += getSize(e.getKey(), e.getValue());
+        }
+        encoded = encode(payload);
+        total = size + getPayloadSize(encoded);
+      }
+    }
+
+    for (Map.Entry<String, String> e : inline.entrySet()) {
+      res.variables.add(new EnvironmentVariable().withName(e.getKey()).withValue(e.getValue()));
+    }
+    if (encoded != null) {
+      res.variables.add(new EnvironmentVariable().withName(CodeBuildConstants.ENV_PAYLOAD_VARIABLE).withValue(encoded));
+      res.payload.addAll(payload.keySet());
+    }
+    return res;
+  }
+
+  private boolean isSelected(@NotNull String name) {
+    return (myIncludes.isEmpty() || matches(myIncludes, name)) && !matches(myExcludes, name);
+  }
+
+  private static boolean matches(@NotNull List<Pattern> patterns, @NotNull String name) {
+    for (Pattern p : patterns) {
+      if (p.matcher(name).matches()) return true;
+    }
+    return false;
+  }
+
+  @NotNull
+  private static List<Pattern> compile(@NotNull List<String> patterns) {
+    final List<Pattern> res = new ArrayList<Pattern>();
+    for (String p : patterns) {
+      final StringBuilder regex = new StringBuilder();
+      for (String part : p.split("\\*", -1)) {
+        if (regex.length() > 0) regex.append(".*");
+        regex.append(Pattern.quote(part));
+      }
+      res.add(Pattern.compile(regex.toString()));
+    }
+    return res;
+  }
+
+  private static int getSize(@NotNull String name, @NotNull String value) {
+    return name.length() + value.length();
+  }
+
+  private static int getPayloadSize(@Nullable String encoded) {
+    return encoded == null ? 0 : getSize(CodeBuildConstants.ENV_PAYLOAD_VARIABLE, encoded);
+  }
+
+  @Nullable
+  private static String encode(@NotNull Map<String, String> properties) {
+    if (properties.isEmpty()) return null;
+    try {
+      final StringWriter text = new StringWriter();
+      final Properties p = new Properties();
+      p.putAll(properties);
+      p.store(text, null);
+      final String content = text.toString();
+
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final Writer out = new OutputStreamWriter(new GZIPOutputStream(bytes), "UTF-8");
+      try {
+        out.write(content.substring(content.indexOf('\n') + 1)); // skip the timestamp comment
+      } finally {
+        out.close();
+      }
+      return Base64.getEncoder().encodeToString(bytes.toByteArray());
+    } catch (IOException e) {
+      throw new IllegalStateException("Failed to encode environment variables: " + e.getMessage(), e);
+    }
+  }
+
+  private static final Comparator<Map.Entry<String, String>> BY_SIZE_DESCENDING = new Comparator<Map.Entry<String, String>>() {
+    @Override
+    public int compare(Map.Entry<String, String> o1, Map.Entry<String, String> o2) {
+      return getSize(o2.getKey(), o2.getValue()) - getSize(o1.getKey(), o1.getValue());
+    }
+  };
+
+  static final class Result {
+    @NotNull final List<EnvironmentVariable> variables = new ArrayList<EnvironmentVariable>();
+    @NotNull final List<String> payload = new ArrayList<String>(); // names of the properties passed in the payload
+    @NotNull final List<String> dropped = new ArrayList<String>(); // names of the properties not passed
+    int excluded;
+  }
+}
@@ -0,0 +1,257 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.apache.commons.compress.archivers.zip.Zip64Mode;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Packs the walked checkout directory entries into a zip archive compressing files concurrently.
+ *
+ * Files are deflated by the worker threads into standalone compressed blobs (in memory for small files,
+ * in temporary files otherwise) and then copied as raw entries into the archive in the directory walk order.
+ * Only a limited number of files are compressed ahead of the writer, so memory and temporary disk usage stay bounded.
+ *
+ * Files with the configured extensions (already compressed formats) or all files when the level is 0 are stored without compression.
+ *
+ * With the {@link ZipEntryCache} the deflated data is kept between packings and only changed files are compressed again.
+ *
+ * @author vbedrosova
+ */
+final class ParallelZipPacker {
+  private static final int IN_MEMORY_THRESHOLD = 4 * 1024 * 1024;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final int myThreads;
+  private final int myLevel;
+  @NotNull private final Set<String> myStoredExtensions;
+  @NotNull private final File myTempDir;
+  @Nullable private final ZipEntryCache myCache;
+
+  ParallelZipPacker(int threads, int level, @NotNull Collection<String> storedExtensions, @NotNull File tempDir, @Nullable ZipEntryCache cache) {
+    myThreads = Math.max(1, threads);
+    myCache = cache;
+    myLevel = level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION ? Deflater.DEFAULT_COMPRESSION : level;
+    myTempDir = tempDir;
+    myStoredExtensions = new HashSet<String>();
+    for (String ext : storedExtensions) {
+      myStoredExtensions.add(ext.trim().toLowerCase(Locale.ENGLISH));
+    }
+  }
+
+  void pack(@NotNull List<SourceTreeWalker.Entry> entries, @NotNull OutputStream out) throws IOException {
+    final ExecutorService executor = Executors.newFixedThreadPool(myThreads, new NamedThreadFactory("AWS CodeBuild source packer"));
+    final Deque<Future<CompressedEntry>> pending = new ArrayDeque<Future<CompressedEntry>>();
+    final ZipArchiveOutputStream zip = new ZipArchiveOutputStream(out);
+    zip.setUseZip64(Zip64Mode.AsNeeded);
+    try {
+      final Iterator<SourceTreeWalker.Entry> it = entries.iterator();
+      while (it.hasNext() || !pending.isEmpty()) {
+        while (it.hasNext() && pending.size() < myThreads * 2) {
+          final SourceTreeWalker.Entry next = it.next();
+          pending.add(executor.submit(new Callable<CompressedEntry>() {
+            @Override
+            public CompressedEntry call() throws IOException {
+              return compress(next);
+            }
+          }));
+        }
+        write(zip, get(pending.poll()));
+      }
+      zip.finish();
+    } finally {
+      executor.shutdownNow();
+      for (Future<CompressedEntry> f : pending) {
+        if (!f.cancel(true) && f.isDone()) {
+          try {
+            f.get().dispose();
+          } catch (Exception ignored) {
+          }
+        }
+      }
+      if (myCache != null) {
+        myCache.cleanup();
+      }
+    }
+    // not closed on failure: closing would write out the incomplete archive, the caller discards the output instead
+    zip.close();
+  }
+
+  @NotNull
+  private CompressedEntry compress(@NotNull SourceTreeWalker.Entry e) throws IOException {
+    final ZipArchiveEntry entry = new ZipArchiveEntry(e.path);
+    entry.setTime(e.file.lastModified());
+
+    if (e.isDirectory()) {
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(0);
+      entry.setCompressedSize(0);
+      entry.setCrc(0);
+      return new CompressedEntry(entry, new byte[0], null, 0, false);
+    }
+
+    final CRC32 crc = new CRC32();
+
+    if (isStored(e.file)) {
+      final long size = copy(e.file, null, crc);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(size);
+      entry.setCompressedSize(size);
+      entry.setCrc(crc.getValue());
+      return new CompressedEntry(entry, null, e.file, 0, false);
+    }
+
+    entry.setMethod(ZipEntry.DEFLATED);
+
+    if (myCache != null) {
+      final String key = ZipEntryCache.getKey(e.path, e.file, myLevel);
+      ZipEntryCache.Entry cached = myCache.get(key);
+      if (cached == null) {
+        final File tempFile = myCache.createTempFile();
+        try {
+          final OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE);
+          out.write(new byte[ZipEntryCache.HEADER_SIZE]);
+          final long size = deflate(e.file, out, crc);
+          cached = myCache.put(key, tempFile, crc.getValue(), size);
+        } catch (IOException ex) {
+          FileUtil.delete(tempFile);
+          throw ex;
+        }
+      }
+      entry.setSize(cached.size);
+      entry.setCompressedSize(cached.compressedSize);
+      entry.setCrc(cached.crc);
+      return new CompressedEntry(entry, null, cached.file, ZipEntryCache.HEADER_SIZE, false);
+    }
+
+    if (e.file.length() <= IN_MEMORY_THRESHOLD) {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(32, e.file.length() / 2));
+      final long size = deflate(e.file, bytes, crc);
+      entry.setSize(size);
+      entry.setCompressedSize(bytes.size());
+      entry.setCrc(crc.getValue());
+      return new CompressedEntry(entry, bytes.toByteArray(), null, 0, false);
+    }
+
+    final File tempFile = File.createTempFile("codebuild-zip-entry", ".tmp", myTempDir);
+    try {
+      final long size = deflate(e.file, new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE), crc);
+      entry.setSize(size);
+      entry.setCompressedSize(tempFile.length());
+      entry.setCrc(crc.getValue());
+      return new CompressedEntry(entry, null, tempFile, 0, true);
+    } catch (IOException ex) {
+      FileUtil.delete(tempFile);
+      throw ex;
+    }
+  }
+
+  /**
+   * Writes raw deflated file content to the stream and closes it, returns uncompressed size
+   */
+  private long deflate(@NotNull File file, @NotNull OutputStream out, @NotNull CRC32 crc) throws IOException {
+    final Deflater deflater = new Deflater(myLevel, true);
+    try {
+      final DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+      try {
+        return copy(file, deflated, crc);
+      } finally {
+        deflated.close();
+      }
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Reads the file updating its checksum and copying the content to the stream if any, returns the file size
+   */
+  private static long copy(@NotNull File file, @Nullable OutputStream out, @NotNull CRC32 crc) throws IOException {
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    long size = 0;
+    final InputStream in = new FileInputStream(file);
+    try {
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        crc.update(buffer, 0, read);
+        if (out != null) out.write(buffer, 0, read);
+        size += read;
+      }
+    } finally {
+      in.close();
+    }
+    return size;
+  }
+
+  private boolean isStored(@NotNull File file) {
+    if (myLevel == Deflater.NO_COMPRESSION) return true;
+    final String name = file.getName();
+    final int dot = name.lastIndexOf('.');
+    return dot >= 0 && myStoredExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+  }
+
+  private static void write(@NotNull ZipArchiveOutputStream zip, @NotNull CompressedEntry e) throws IOException {
+    try {
+      final InputStream raw = e.openRaw();
+      try {
+        zip.addRawArchiveEntry(e.entry, raw);
+      } finally {
+        raw.close();
+      }
+    } finally {
+      e.dispose();
+    }
+  }
+
+  @NotNull
+  private static CompressedEntry get(@NotNull Future<CompressedEntry> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while packing the archive");
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) throw (IOException) cause;
+      throw new IOException("Failed to pack the archive: " + cause.getMessage(), cause);
+    }
+  }
+
+  private static final class CompressedEntry {
+    @NotNull private final ZipArchiveEntry entry;
+    @Nullable private final byte[] bytes;
+    @Nullable private final File file;
+    private final long offset;
+    private final boolean deleteFile;
+
+    private CompressedEntry(@NotNull ZipArchiveEntry entry, @Nullable byte[] bytes, @Nullable File file, long offset, boolean deleteFile) {
+      this.entry = entry;
+      this.bytes = bytes;
+      this.file = file;
+      this.offset = offset;
+      this.deleteFile = deleteFile;
+    }
+
+    @NotNull
+    private InputStream openRaw() throws IOException {
+      if (file == null) return new ByteArrayInputStream(bytes == null ? new byte[0] : bytes);
+      final FileInputStream in = new FileInputStream(file);
+      in.getChannel().position(offset);
+      return new BufferedInputStream(in, BUFFER_SIZE);
+    }
+
+    private void dispose() {
+      if (deleteFile && file != null) FileUtil.delete(file);
+    }
+  }
+}
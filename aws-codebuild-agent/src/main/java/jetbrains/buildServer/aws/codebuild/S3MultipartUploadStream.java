@@ -0,0 +1,155 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Uploads everything written to it to the AWS S3 object using multipart upload.
+ *
+ * The data is cut into parts of fixed size which are uploaded in parallel while the writer continues
+ * writing the next ones. At most threads + 1 parts are kept in memory, the writer is blocked until
+ * some part upload finishes when this limit is reached.
+ *
+ * The upload must be finished with {@link #complete()} or {@link #abort()}, closing the stream only uploads the last part.
+ *
+ * @author vbedrosova
+ */
+final class S3MultipartUploadStream extends OutputStream {
+  static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+  @NotNull private final AmazonS3 myS3;
+  @NotNull private final String myBucket;
+  @NotNull private final String myKey;
+  @NotNull private final String myUploadId;
+  @NotNull private final ExecutorService myExecutor;
+  @NotNull private final Semaphore myBuffers;
+  @NotNull private final List<Future<PartETag>> myParts = new ArrayList<Future<PartETag>>();
+
+  private byte[] myBuffer;
+  private int myBufferSize;
+  private boolean myClosed;
+
+  S3MultipartUploadStream(@NotNull AmazonS3 s3, @NotNull String bucket, @NotNull String key, @NotNull ObjectMetadata metadata, int partSize, int threads) {
+    myS3 = s3;
+    myBucket = bucket;
+    myKey = key;
+    myBuffer = new byte[Math.max(MIN_PART_SIZE, partSize)];
+    myExecutor = Executors.newFixedThreadPool(Math.max(1, threads), new NamedThreadFactory("AWS S3 multipart upload"));
+    myBuffers = new Semaphore(Math.max(1, threads));
+    myUploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key, metadata)).getUploadId();
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(@NotNull byte[] b, int off, int len) throws IOException {
+    if (myClosed) throw new IOException("Stream is closed");
+    while (len > 0) {
+      final int n = Math.min(len, myBuffer.length - myBufferSize);
+      System.arraycopy(b, off, myBuffer, myBufferSize, n);
+      myBufferSize += n;
+      off += n;
+      len -= n;
+      if (myBufferSize == myBuffer.length) {
+        submitPart(false);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (myClosed) return;
+    myClosed = true;
+    if (myBufferSize > 0 || myParts.isEmpty()) {
+      submitPart(true);
+    }
+    myBuffer = null;
+  }
+
+  @NotNull
+  CompleteMultipartUploadResult complete() throws IOException {
+    close();
+    try {
+      final List<PartETag> partETags = new ArrayList<PartETag>();
+      for (Future<PartETag> part : myParts) {
+        partETags.add(part.get());
+      }
+      return myS3.completeMultipartUpload(new CompleteMultipartUploadRequest(myBucket, myKey, myUploadId, partETags));
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while uploading to AWS S3");
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to upload part to AWS S3: " + e.getCause().getMessage(), e.getCause());
+    } finally {
+      myExecutor.shutdownNow();
+    }
+  }
+
+  void abort() {
+    myClosed = true;
+    myBuffer = null;
+    for (Future<PartETag> part : myParts) {
+      part.cancel(true);
+    }
+    myExecutor.shutdownNow();
+    myS3.abortMultipartUpload(new AbortMultipartUploadRequest(myBucket, myKey, myUploadId));
+  }
+
+  private void submitPart(final boolean lastPart) throws IOException {
+    try {
+      myBuffers.acquire();
+      checkFailedParts();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while uploading to AWS S3");
+    }
+
+    final byte[] data = myBuffer;
+    final int size = myBufferSize;
+    final int partNumber = myParts.size() + 1;
+    myParts.add(myExecutor.submit(new Callable<PartETag>() {
+      @Override
+      public PartETag call() {
+        try {
+          return myS3.uploadPart(new UploadPartRequest()
+            .withBucketName(myBucket)
+            .withKey(myKey)
+            .withUploadId(myUploadId)
+            .withPartNumber(partNumber)
+            .withPartSize(size)
+            .withLastPart(lastPart)
+            .withInputStream(new ByteArrayInputStream(data, 0, size))).getPartETag();
+        } finally {
+          myBuffers.release();
+        }
+      }
+    }));
+
+    if (!lastPart) {
+      myBuffer = new byte[data.length];
+    }
+    myBufferSize = 0;
+  }
+
+  private void checkFailedParts() throws IOException, InterruptedException {
+    for (Future<PartETag> part : myParts) {
+      if (!part.isDone()) continue;
+      try {
+        part.get();
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to upload part to AWS S3: " + e.getCause().getMessage(), e.getCause());
+      }
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.*;
+
+/**
+ * Reads the AWS S3 object downloading its byte ranges in parallel.
+ *
+ * The object is cut into parts of fixed size, up to maxAhead parts are requested with ranged GETs in advance
+ * while the reader consumes the current one. Every requested part, including the current one, holds a permit of the buffers
+ * semaphore which can be shared by several streams to bound the memory they use together. Parts ahead are requested
+ * only while permits are available, the reader waits for a permit only when it has no part to read.
+ *
+ * @author vbedrosova
+ */
+final class S3RangedInputStream extends InputStream {
+  @NotNull private final AmazonS3 myS3;
+  @NotNull private final String myBucket;
+  @NotNull private final String myKey;
+  private final long mySize;
+  private final int myPartSize;
+  private final int myMaxAhead;
+  @NotNull private final ExecutorService myExecutor;
+  @NotNull private final Semaphore myBuffers;
+  @NotNull private final Deque<Future<byte[]>> myParts = new ArrayDeque<Future<byte[]>>();
+
+  private long myNextOffset;
+  private byte[] myPart = new byte[0];
+  private int myPartPos;
+  private boolean myPartHeld; // the current part holds a buffers permit
+  private boolean myClosed;
+
+  S3RangedInputStream(@NotNull AmazonS3 s3, @NotNull String bucket, @NotNull String key, long size, int partSize, int maxAhead,
+                      @NotNull ExecutorService executor, @NotNull Semaphore buffers) {
+    myS3 = s3;
+    myBucket = bucket;
+    myKey = key;
+    mySize = size;
+    myPartSize = Math.max(1, partSize);
+    myMaxAhead = Math.max(1, maxAhead);
+    myExecutor = executor;
+    myBuffers = buffers;
+  }
+
+  @Override
+  public int read() throws IOException {
+    final byte[] b = new byte[1];
+    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+  }
+
+  @Override
+  public int read(@NotNull byte[] b, int off, int len) throws IOException {
+    if (myClosed) throw new IOException("Stream is closed");
+    if (len == 0) return 0;
+    if (myPartPos == myPart.length && !nextPart()) return -1;
+
+    final int n = Math.min(len, myPart.length - myPartPos);
+    System.arraycopy(myPart, myPartPos, b, off, n);
+    myPartPos += n;
+    return n;
+  }
+
+  @Override
+  public void close() {
+    if (myClosed) return;
+    myClosed = true;
+    for (Future<byte[]> f : myParts) {
+      f.cancel(true);
+    }
+    myBuffers.release(myParts.size() + (myPartHeld ? 1 : 0));
+    myParts.clear();
+    myPart = null;
+    myPartHeld = false;
+  }
+
+  private boolean nextPart() throws IOException {
+    if (myPartHeld) {
+      myPartHeld = false;
+      myBuffers.release(); // the current part is consumed
+    }
+    requestParts(true);
+    final Future<byte[]> next = myParts.poll();
+    if (next == null) return false;
+    myPartHeld = true; // the permit passes to the current part
+    try {
+      myPart = next.get();
+      myPartPos = 0;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while downloading " + myBucket + "/" + myKey);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to download " + myBucket + "/" + myKey + ": " + e.getCause().getMessage(), e.getCause());
+    }
+    requestParts(false);
+    return true;
+  }
+
+  /**
+   * @param block whether to wait for a permit if there are no parts requested
+   */
+  private void requestParts(boolean block) throws InterruptedIOException {
+    while (myParts.size() < myMaxAhead && myNextOffset < mySize) {
+      if (!myBuffers.tryAcquire()) {
+        if (!block || !myParts.isEmpty()) return;
+        try {
+          myBuffers.acquire();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while downloading " + myBucket + "/" + myKey);
+        }
+      }
+      final long start = myNextOffset;
+      final long end = Math.min(mySize, start + myPartSize) - 1;
+      myParts.add(myExecutor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          return download(start, end);
+        }
+      }));
+      myNextOffset = end + 1;
+    }
+  }
+
+  @NotNull
+  private byte[] download(long start, long end) throws IOException {
+    final byte[] res = new byte[(int) (end - start + 1)];
+    final S3Object object = myS3.getObject(new GetObjectRequest(myBucket, myKey).withRange(start, end));
+    try {
+      final InputStream in = object.getObjectContent();
+      int pos = 0;
+      int read;
+      while (pos < res.length && (read = in.read(res, pos, res.length - pos)) >= 0) {
+        pos += read;
+      }
+      if (pos < res.length) {
+        throw new IOException("Unexpected end of " + myBucket + "/" + myKey + " range " + start + "-" + end);
+      }
+    } finally {
+      object.close();
+    }
+    return res;
+  }
+}
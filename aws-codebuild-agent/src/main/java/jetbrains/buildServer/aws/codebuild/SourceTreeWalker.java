@@ -0,0 +1,92 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lists the checkout directory files to be packed into the S3 source archive in a stable order.
+ *
+ * Excluded directories are skipped without listing their content. When ignore files are honored,
+ * the root .dockerignore and the .gitignore files of every walked directory are applied, and .git directories are skipped.
+ *
+ * @author vbedrosova
+ */
+final class SourceTreeWalker {
+  private static final String GIT_DIR = ".git";
+
+  @NotNull private final SourcePathFilter myFilter;
+  private final boolean myUseIgnoreFiles;
+
+  SourceTreeWalker(@NotNull SourcePathFilter filter, boolean useIgnoreFiles) {
+    myFilter = filter;
+    myUseIgnoreFiles = useIgnoreFiles;
+  }
+
+  /**
+   * Returns the files and directories in the walk order, directory paths end with '/'
+   */
+  @NotNull
+  List<Entry> walk(@NotNull File root) throws IOException {
+    SourcePathFilter filter = myFilter;
+    if (myUseIgnoreFiles) {
+      final File dockerIgnore = new File(root, SourcePathFilter.DOCKER_IGNORE);
+      if (dockerIgnore.isFile()) {
+        filter = filter.withIgnoreRules("", SourcePathFilter.parsePatterns(FileUtil.readText(dockerIgnore)), true);
+      }
+    }
+    final List<Entry> entries = new ArrayList<Entry>();
+    walk(root, "", filter, entries);
+    return entries;
+  }
+
+  private void walk(@NotNull File dir, @NotNull String prefix, @NotNull SourcePathFilter filter, @NotNull List<Entry> entries) throws IOException {
+    final File[] files = dir.listFiles();
+    if (files == null) return;
+    Arrays.sort(files);
+
+    if (myUseIgnoreFiles) {
+      final File gitIgnore = new File(dir, SourcePathFilter.GIT_IGNORE);
+      if (gitIgnore.isFile()) {
+        filter = filter.withIgnoreRules(prefix, SourcePathFilter.parsePatterns(FileUtil.readText(gitIgnore)), false);
+      }
+    }
+
+    for (File f : files) {
+      final String path = prefix + f.getName();
+      final boolean isDirectory = f.isDirectory();
+      if (isDirectory && myUseIgnoreFiles && GIT_DIR.equals(f.getName())) continue;
+      if (filter.isExcluded(path, isDirectory)) continue;
+
+      if (isDirectory) {
+        final int index = entries.size();
+        entries.add(new Entry(f, path + "/"));
+        walk(f, path + "/", filter, entries);
+        if (filter.hasIncludes() && entries.size() == index + 1) {
+          entries.remove(index); // nothing included from this directory
+        }
+      } else if (filter.isIncluded(path)) {
+        entries.add(new Entry(f, path));
+      }
+    }
+  }
+
+  static final class Entry {
+    @NotNull final File file;
+    @NotNull final String path;
+
+    private Entry(@NotNull File file, @NotNull String path) {
+      this.file = file;
+      this.path = path;
+    }
+
+    boolean isDirectory() {
+      return path.endsWith("/");
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent-local cache of deflated zip entry contents.
+ *
+ * An entry is keyed by the file path in the archive, its size, modification time and the compression level.
+ * Each cache file starts with a header holding CRC-32 and the uncompressed size followed by the raw deflated data,
+ * which can be copied to the archive as is. Least recently used files are removed when the cache exceeds its size limit.
+ *
+ * @author vbedrosova
+ */
+final class ZipEntryCache {
+  static final int HEADER_SIZE = 16;
+  private static final long STALE_TEMP_FILE_AGE = TimeUnit.HOURS.toMillis(1);
+
+  @NotNull private final File myDir;
+  private final long myMaxSize;
+
+  ZipEntryCache(@NotNull File dir, long maxSize) {
+    myDir = dir;
+    myMaxSize = maxSize;
+  }
+
+  @NotNull
+  static String getKey(@NotNull String path, @NotNull File file, int level) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    final String key = path + '\0' + file.length() + '\0' + file.lastModified() + '\0' + level;
+    return CheckoutDirectoryDigest.toHex(digest.digest(key.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  @Nullable
+  Entry get(@NotNull String key) {
+    final File file = getFile(key);
+    if (!file.isFile()) return null;
+
+    try {
+      final DataInputStream in = new DataInputStream(new FileInputStream(file));
+      try {
+        final long crc = in.readLong();
+        final long size = in.readLong();
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(System.currentTimeMillis());
+        return new Entry(file, crc, size, file.length() - HEADER_SIZE);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      FileUtil.delete(file);
+      return null;
+    }
+  }
+
+  /**
+   * Creates the file to write the new entry to: {@link #HEADER_SIZE} bytes of the header followed by the deflated data
+   */
+  @NotNull
+  File createTempFile() throws IOException {
+    if (!myDir.isDirectory() && !myDir.mkdirs()) {
+      throw new IOException("Failed to create directory " + myDir);
+    }
+    return File.createTempFile("entry", ".tmp", myDir);
+  }
+
+  @NotNull
+  Entry put(@NotNull String key, @NotNull File tempFile, long crc, long size) throws IOException {
+    final RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+    try {
+      raf.seek(0);
+      raf.writeLong(crc);
+      raf.writeLong(size);
+    } finally {
+      raf.close();
+    }
+
+    final File file = getFile(key);
+    final File parent = file.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      FileUtil.delete(tempFile);
+      throw new IOException("Failed to create directory " + parent);
+    }
+    if (!tempFile.renameTo(file)) {
+      // must have been put concurrently
+      FileUtil.delete(tempFile);
+      final Entry existing = get(key);
+      if (existing == null) throw new IOException("Failed to store zip entry in the cache " + file);
+      return existing;
+    }
+    return new Entry(file, crc, size, file.length() - HEADER_SIZE);
+  }
+
+  /**
+   * Removes least recently used entries until the total cache size fits the limit
+   */
+  void cleanup() {
+    final List<File> files = new ArrayList<File>();
+    final File[] dirs = myDir.listFiles();
+    if (dirs == null) return;
+    long total = 0;
+    for (File dir : dirs) {
+      if (dir.isFile() && dir.lastModified() < System.currentTimeMillis() - STALE_TEMP_FILE_AGE) {
+        FileUtil.delete(dir); // left by an interrupted packing
+        continue;
+      }
+      final File[] entries = dir.listFiles();
+      if (entries == null) continue;
+      for (File f : entries) {
+        files.add(f);
+        total += f.length();
+      }
+    }
+    if (total <= myMaxSize) return;
+
+    Collections.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File o1, File o2) {
+        return Long.compare(o1.lastModified(), o2.lastModified());
+      }
+    });
+    for (File f : files) {
+      if (total <= myMaxSize) break;
+      final long length = f.length();
+      if (FileUtil.delete(f)) total -= length;
+    }
+  }
+
+  @NotNull
+  private File getFile(@NotNull String key) {
+    return new File(new File(myDir, key.substring(0, 2)), key);
+  }
+
+  static final class Entry {
+    @NotNull final File file;
+    final long crc;
+    final long size;
+    final long compressedSize;
+
+    private Entry(@NotNull File file, long crc, long size, long compressedSize) {
+      this.file = file;
+      this.crc = crc;
+      this.size = size;
+      this.compressedSize = compressedSize;
+    }
+  }
+}
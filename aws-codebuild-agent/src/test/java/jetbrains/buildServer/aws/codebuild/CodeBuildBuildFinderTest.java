@@ -0,0 +1,89 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.model.EnvironmentVariable;
+import com.amazonaws.services.codebuild.model.ProjectArtifacts;
+import com.amazonaws.services.codebuild.model.StartBuildRequest;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author vbedrosova
+ */
+@Test
+public class CodeBuildBuildFinderTest {
+
+  public void fingerprint_is_stable() {
+    assertEquals(fingerprint(request(), vars("A", "1")), fingerprint(request(), vars("A", "1")));
+    assertEquals(fingerprint(request(), vars("A", "1", "B", "2")), fingerprint(request(), vars("B", "2", "A", "1")));
+  }
+
+  public void fingerprint_depends_on_build_inputs() {
+    final String base = fingerprint(request(), vars("A", "1"));
+    assertNotEquals(fingerprint(request().withProjectName("other"), vars("A", "1")), base);
+    assertNotEquals(fingerprint(request().withSourceVersion("0123456789012345678901234567890123456789"), vars("A", "1")), base);
+    assertNotEquals(fingerprint(request().withBuildspecOverride("other.yml"), vars("A", "1")), base);
+    assertNotEquals(fingerprint(request().withEnvironmentTypeOverride("ARM_CONTAINER"), vars("A", "1")), base);
+    assertNotEquals(fingerprint(request().withImageOverride("aws/codebuild/standard:3.0"), vars("A", "1")), base);
+    assertNotEquals(fingerprint(request().withComputeTypeOverride("BUILD_GENERAL1_LARGE"), vars("A", "1")), base);
+  }
+
+  public void fingerprint_depends_on_user_variables() {
+    final String base = fingerprint(request(), vars("A", "1"));
+    assertNotEquals(fingerprint(request(), vars("A", "2")), base);
+    assertNotEquals(fingerprint(request(), vars("B", "1")), base);
+    assertNotEquals(fingerprint(request(), vars("A", "1", "B", "2")), base);
+    assertNotEquals(fingerprint(request(), vars()), base);
+  }
+
+  public void fingerprint_ignores_other_request_fields() {
+    final String base = fingerprint(request(), vars("A", "1"));
+    assertEquals(fingerprint(request().withEnvironmentVariablesOverride(
+      new EnvironmentVariable().withName("teamcity.build.id").withValue("42"),
+      new EnvironmentVariable().withName("A").withValue("1")), vars("A", "1")), base);
+    assertEquals(fingerprint(request().withTimeoutInMinutesOverride(60), vars("A", "1")), base);
+    assertEquals(fingerprint(request().withArtifactsOverride(new ProjectArtifacts().withType("S3").withLocation("bucket")), vars("A", "1")), base);
+    assertEquals(fingerprint(request().withIdempotencyToken("token"), vars("A", "1")), base);
+  }
+
+  public void values_do_not_run_into_each_other() {
+    assertNotEquals(fingerprint(request(), vars("A", "1B")), fingerprint(request(), vars("A1", "B")));
+    assertNotEquals(fingerprint(request().withProjectName("ab").withBuildspecOverride(null), vars()),
+                    fingerprint(request().withProjectName("a").withBuildspecOverride("b"), vars()));
+  }
+
+  public void fingerprint_variable_is_added_to_a_copy() {
+    final StartBuildRequest request = request().withEnvironmentVariablesOverride(new EnvironmentVariable().withName("A").withValue("1"));
+    final StartBuildRequest res = CodeBuildBuildFinder.withFingerprint(request, "abc");
+
+    assertEquals(request.getEnvironmentVariablesOverride().size(), 1);
+    assertEquals(res.getEnvironmentVariablesOverride().size(), 2);
+    assertEquals(res.getEnvironmentVariablesOverride().get(1).getName(), CodeBuildConstants.FINGERPRINT_VARIABLE);
+    assertEquals(res.getEnvironmentVariablesOverride().get(1).getValue(), "abc");
+  }
+
+  @NotNull
+  private static StartBuildRequest request() {
+    return new StartBuildRequest()
+      .withProjectName("project")
+      .withSourceVersion("abcdefabcdefabcdefabcdefabcdefabcdefabcd")
+      .withBuildspecOverride("buildspec.yml");
+  }
+
+  @NotNull
+  private static Map<String, String> vars(@NotNull String... namesAndValues) {
+    final Map<String, String> res = new LinkedHashMap<String, String>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      res.put(namesAndValues[i], namesAndValues[i + 1]);
+    }
+    return res;
+  }
+
+  @NotNull
+  private static String fingerprint(@NotNull StartBuildRequest request, @NotNull Map<String, String> userVariables) {
+    return CodeBuildBuildFinder.getFingerprint(request, userVariables);
+  }
+}
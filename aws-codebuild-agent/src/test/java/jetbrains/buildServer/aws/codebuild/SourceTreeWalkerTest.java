@@ -0,0 +1,126 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+
+/**
+ * @author vbedrosova
+ */
+@Test
+public class SourceTreeWalkerTest {
+  private File myRoot;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    myRoot = Files.createTempDirectory("source-tree-walker").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    FileUtil.delete(myRoot);
+  }
+
+  public void walks_in_stable_order() throws IOException {
+    file("b.txt");
+    file("a/z.txt");
+    file("a/b/c.txt");
+    file("c/d.txt");
+
+    assertEquals(walk(none(), false), Arrays.asList("a/", "a/b/", "a/b/c.txt", "a/z.txt", "b.txt", "c/", "c/d.txt"));
+  }
+
+  public void skips_excluded_directories() throws IOException {
+    file("build/out.jar");
+    file("src/build/Build.java");
+    file("src/A.java");
+
+    assertEquals(walk(new SourcePathFilter(Collections.<String>emptyList(), Collections.singletonList("/build/")), false),
+                 Arrays.asList("src/", "src/A.java", "src/build/", "src/build/Build.java"));
+  }
+
+  public void drops_directories_with_nothing_included() throws IOException {
+    file("src/A.java");
+    file("src/res/a.png");
+    file("docs/readme.txt");
+
+    assertEquals(walk(new SourcePathFilter(Collections.singletonList("*.java"), Collections.<String>emptyList()), false),
+                 Arrays.asList("src/", "src/A.java"));
+  }
+
+  public void ignore_files_are_honored_only_when_enabled() throws IOException {
+    file(".gitignore", "*.log\n");
+    file(".git/config");
+    file("a.log");
+    file("a.txt");
+
+    assertEquals(walk(none(), true), Arrays.asList(".gitignore", "a.txt"));
+    assertEquals(walk(none(), false), Arrays.asList(".git/", ".git/config", ".gitignore", "a.log", "a.txt"));
+  }
+
+  public void nested_gitignore_applies_to_its_directory() throws IOException {
+    file("a.tmp");
+    file("src/.gitignore", "*.tmp\n/generated/\n");
+    file("src/b.tmp");
+    file("src/x/c.tmp");
+    file("src/generated/G.java");
+    file("src/x/generated/G.java");
+
+    assertEquals(walk(none(), true),
+                 Arrays.asList("a.tmp", "src/", "src/.gitignore", "src/x/", "src/x/generated/", "src/x/generated/G.java"));
+  }
+
+  public void negation_reincludes_files_but_not_in_ignored_directories() throws IOException {
+    file(".gitignore", "*.log\n!keep.log\nbuild/\n!build/keep.txt\n");
+    file("a.log");
+    file("keep.log");
+    file("build/keep.txt");
+
+    assertEquals(walk(none(), true), Arrays.asList(".gitignore", "keep.log"));
+  }
+
+  public void root_dockerignore_is_anchored() throws IOException {
+    file(".dockerignore", "*.md\n");
+    file("README.md");
+    file("docs/guide.md");
+
+    assertEquals(walk(none(), true), Arrays.asList(".dockerignore", "docs/", "docs/guide.md"));
+  }
+
+  @NotNull
+  private List<String> walk(@NotNull SourcePathFilter filter, boolean useIgnoreFiles) throws IOException {
+    final List<String> res = new ArrayList<String>();
+    for (SourceTreeWalker.Entry e : new SourceTreeWalker(filter, useIgnoreFiles).walk(myRoot)) {
+      res.add(e.path);
+    }
+    return res;
+  }
+
+  private void file(@NotNull String path) throws IOException {
+    file(path, path);
+  }
+
+  private void file(@NotNull String path, @NotNull String content) throws IOException {
+    final File f = new File(myRoot, path);
+    Files.createDirectories(f.getParentFile().toPath());
+    Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  @NotNull
+  private static SourcePathFilter none() {
+    return new SourcePathFilter(Collections.<String>emptyList(), Collections.<String>emptyList());
+  }
+}
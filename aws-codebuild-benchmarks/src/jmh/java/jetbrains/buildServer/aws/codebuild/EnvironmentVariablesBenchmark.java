@@ -0,0 +1,50 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.model.EnvironmentVariable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures selecting the build system properties passed as the AWS CodeBuild environment variables overrides,
+ * with a 32K size budget and with all the properties fitting it.
+ *
+ * @author vbedrosova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EnvironmentVariablesBenchmark {
+  private static final int MAX_VALUE_LENGTH = 1024;
+
+  @Param({"100", "1000", "5000"})
+  public int properties;
+
+  @Param({"32768", "2147483647"}) // a budget and no budget
+  public int sizeBudget;
+
+  private Map<String, String> mySystemProperties;
+  private EnvironmentVariablesSelector mySelector;
+
+  @Setup
+  public void setUp() {
+    mySystemProperties = new HashMap<String, String>();
+    for (int i = 0; i < properties; ++i) {
+      final StringBuilder value = new StringBuilder();
+      for (int j = 0; j < i % 64; ++j) {
+        value.append("value").append(j);
+      }
+      mySystemProperties.put("system.property." + i, value.toString());
+    }
+    mySelector = new EnvironmentVariablesSelector(Collections.<String>emptyList(), Collections.singletonList("system.property.*9"), MAX_VALUE_LENGTH, sizeBudget);
+  }
+
+  @Benchmark
+  public List<EnvironmentVariable> select() {
+    return mySelector.select(mySystemProperties).variables;
+  }
+}
@@ -0,0 +1,413 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.codebuild.AWSCodeBuild;
+import com.amazonaws.services.codebuild.AbstractAWSCodeBuild;
+import com.amazonaws.services.codebuild.model.*;
+import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.AbstractAWSLogs;
+import com.amazonaws.services.logs.model.GetLogEventsRequest;
+import com.amazonaws.services.logs.model.GetLogEventsResult;
+import com.amazonaws.services.logs.model.OutputLogEvent;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import jetbrains.buildServer.util.amazon.AWSClients;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the AWS CodeBuild, S3 and CloudWatch Logs endpoints the plugin calls:
+ * StartBuild, BatchGetBuilds, StopBuild, BatchGetProjects, ListProjects, PutObject and GetLogEvents.
+ *
+ * Builds follow the {@link Timeline} scripted for their project, their state is computed from the time passed since the start,
+ * every phase writes a line per 100 ms into the build log stream. Calls can be slowed down, throttled or failed
+ * per operation with the given probability. Calls, injected failures and the delay between a build completion
+ * and the first BatchGetBuilds result showing it are counted.
+ *
+ * @author vbedrosova
+ */
+final class FakeAWS {
+  private static final String LOG_GROUP = "/aws/codebuild/fake";
+  private static final long LOG_LINE_INTERVAL = 100;
+
+  @NotNull private final Map<String, Timeline> myProjects = new ConcurrentHashMap<String, Timeline>();
+  @NotNull private final Map<String, FakeBuild> myBuilds = new ConcurrentHashMap<String, FakeBuild>();
+  @NotNull private final Map<String, Failure> myFailures = new ConcurrentHashMap<String, Failure>();
+  @NotNull private final Map<String, Long> myLatencies = new ConcurrentHashMap<String, Long>();
+  @NotNull private final Map<String, AtomicLong> myCalls = new ConcurrentHashMap<String, AtomicLong>();
+  @NotNull private final AtomicLong myInjectedFailures = new AtomicLong();
+  @NotNull private final AtomicLong myObservedBuilds = new AtomicLong();
+  @NotNull private final AtomicLong myObservationDelay = new AtomicLong();
+  @NotNull private final AtomicLong myBuildCounter = new AtomicLong();
+
+  /**
+   * Phases of the project builds, the build fails in the phase if it's scripted to
+   */
+  static final class Timeline {
+    @NotNull private final List<String> myPhases = new ArrayList<String>();
+    @NotNull private final List<Long> myDurations = new ArrayList<Long>();
+    @Nullable private String myFailedPhase;
+
+    @NotNull
+    Timeline phase(@NotNull String phaseType, long durationMillis) {
+      myPhases.add(phaseType);
+      myDurations.add(durationMillis);
+      return this;
+    }
+
+    @NotNull
+    Timeline failIn(@NotNull String phaseType) {
+      myFailedPhase = phaseType;
+      return this;
+    }
+
+    /**
+     * Returns the usual CodeBuild phases with the BUILD phase of the given duration and the others of the given duration each
+     */
+    @NotNull
+    static Timeline standard(long buildMillis, long otherPhaseMillis) {
+      final Timeline res = new Timeline();
+      for (String phase : Stubs.PHASES) {
+        if ("COMPLETED".equals(phase)) continue;
+        res.phase(phase, "BUILD".equals(phase) ? buildMillis : otherPhaseMillis);
+      }
+      return res;
+    }
+  }
+
+  private static final class Failure {
+    private final double probability;
+    private final int statusCode;
+    @NotNull private final String errorCode;
+
+    private Failure(double probability, int statusCode, @NotNull String errorCode) {
+      this.probability = probability;
+      this.statusCode = statusCode;
+      this.errorCode = errorCode;
+    }
+  }
+
+  private static final class FakeBuild {
+    @NotNull private final String id;
+    @NotNull private final String projectName;
+    @NotNull private final Timeline timeline;
+    private final long startTime;
+    private volatile long stopTime;
+    private volatile boolean observedComplete;
+
+    private FakeBuild(@NotNull String id, @NotNull String projectName, @NotNull Timeline timeline, long startTime) {
+      this.id = id;
+      this.projectName = projectName;
+      this.timeline = timeline;
+      this.startTime = startTime;
+    }
+  }
+
+  @NotNull
+  FakeAWS project(@NotNull String name, @NotNull Timeline timeline) {
+    myProjects.put(name, timeline);
+    return this;
+  }
+
+  /**
+   * Makes the operation calls take at least the given time
+   */
+  @NotNull
+  FakeAWS latency(@NotNull String operation, long millis) {
+    myLatencies.put(operation, millis);
+    return this;
+  }
+
+  @NotNull
+  FakeAWS throttle(@NotNull String operation, double probability) {
+    return fail(operation, probability, 400, "ThrottlingException");
+  }
+
+  @NotNull
+  FakeAWS fail(@NotNull String operation, double probability, int statusCode, @NotNull String errorCode) {
+    myFailures.put(operation, new Failure(probability, statusCode, errorCode));
+    return this;
+  }
+
+  long getCalls(@NotNull String operation) {
+    final AtomicLong calls = myCalls.get(operation);
+    return calls == null ? 0 : calls.get();
+  }
+
+  long getInjectedFailures() {
+    return myInjectedFailures.get();
+  }
+
+  /**
+   * Returns the average time between the builds completion and the first BatchGetBuilds showing it
+   */
+  long getAverageObservationDelay() {
+    final long observed = myObservedBuilds.get();
+    return observed == 0 ? 0 : myObservationDelay.get() / observed;
+  }
+
+  long getObservedBuilds() {
+    return myObservedBuilds.get();
+  }
+
+  /**
+   * Returns the clients cache which hands out the fake clients for any connection settings
+   */
+  @NotNull
+  AWSClientsCache clientsCache() {
+    final AWSCodeBuild codeBuild = codeBuild();
+    final AWSLogs logs = logs();
+    final AmazonS3 s3 = s3();
+    return new AWSClientsCache() {
+      @NotNull
+      @Override
+      protected AWSCodeBuild createCodeBuildClient(@NotNull AWSClients clients) {
+        return codeBuild;
+      }
+
+      @NotNull
+      @Override
+      protected AWSLogs createLogsClient(@NotNull AWSClients clients) {
+        return logs;
+      }
+
+      @NotNull
+      @Override
+      protected AmazonS3 createS3Client(@NotNull AWSClients clients) {
+        return s3;
+      }
+    };
+  }
+
+  @NotNull
+  AWSCodeBuild codeBuild() {
+    return new AbstractAWSCodeBuild() {
+      @Override
+      public void shutdown() {
+      }
+
+      @Override
+      public StartBuildResult startBuild(StartBuildRequest request) {
+        call("StartBuild");
+        final Timeline timeline = myProjects.get(request.getProjectName());
+        if (timeline == null) throw serviceException("Project cannot be found: " + request.getProjectName(), 400, "ResourceNotFoundException");
+
+        final String id = request.getProjectName() + ":" + myBuildCounter.incrementAndGet();
+        final FakeBuild build = new FakeBuild(id, request.getProjectName(), timeline, System.currentTimeMillis());
+        myBuilds.put(id, build);
+        return new StartBuildResult().withBuild(toBuild(build, build.startTime));
+      }
+
+      @Override
+      public BatchGetBuildsResult batchGetBuilds(BatchGetBuildsRequest request) {
+        call("BatchGetBuilds");
+        if (request.getIds().size() > 100) throw serviceException("Too many ids", 400, "InvalidInputException");
+
+        final long now = System.currentTimeMillis();
+        final List<Build> builds = new ArrayList<Build>();
+        final List<String> notFound = new ArrayList<String>();
+        for (String id : request.getIds()) {
+          final FakeBuild build = myBuilds.get(id);
+          if (build == null) {
+            notFound.add(id);
+            continue;
+          }
+          final Build b = toBuild(build, now);
+          if (b.getBuildComplete() && !build.observedComplete) {
+            build.observedComplete = true;
+            myObservedBuilds.incrementAndGet();
+            myObservationDelay.addAndGet(now - b.getEndTime().getTime());
+          }
+          builds.add(b);
+        }
+        return new BatchGetBuildsResult().withBuilds(builds).withBuildsNotFound(notFound);
+      }
+
+      @Override
+      public StopBuildResult stopBuild(StopBuildRequest request) {
+        call("StopBuild");
+        final FakeBuild build = myBuilds.get(request.getId());
+        if (build == null) throw serviceException("Build cannot be found: " + request.getId(), 400, "ResourceNotFoundException");
+        if (build.stopTime == 0) build.stopTime = System.currentTimeMillis();
+        return new StopBuildResult().withBuild(toBuild(build, System.currentTimeMillis()));
+      }
+
+      @Override
+      public BatchGetProjectsResult batchGetProjects(BatchGetProjectsRequest request) {
+        call("BatchGetProjects");
+        final List<Project> projects = new ArrayList<Project>();
+        final List<String> notFound = new ArrayList<String>();
+        for (String name : request.getNames()) {
+          if (myProjects.containsKey(name)) {
+            projects.add(new Project().withName(name).withSource(new ProjectSource().withType(SourceType.S3).withLocation("fake-bucket/" + name + "/source.zip")));
+          } else {
+            notFound.add(name);
+          }
+        }
+        return new BatchGetProjectsResult().withProjects(projects).withProjectsNotFound(notFound);
+      }
+
+      @Override
+      public ListProjectsResult listProjects(ListProjectsRequest request) {
+        call("ListProjects");
+        final List<String> names = new ArrayList<String>(new TreeSet<String>(myProjects.keySet()));
+        final int from = request.getNextToken() == null ? 0 : Integer.parseInt(request.getNextToken());
+        final int to = Math.min(names.size(), from + 100);
+        return new ListProjectsResult().withProjects(names.subList(from, to)).withNextToken(to < names.size() ? String.valueOf(to) : null);
+      }
+    };
+  }
+
+  @NotNull
+  AWSLogs logs() {
+    return new AbstractAWSLogs() {
+      @Override
+      public void shutdown() {
+      }
+
+      @Override
+      public GetLogEventsResult getLogEvents(GetLogEventsRequest request) {
+        call("GetLogEvents");
+        final FakeBuild build = myBuilds.get(request.getLogStreamName());
+        if (build == null) throw new com.amazonaws.services.logs.model.ResourceNotFoundException("The specified log stream does not exist");
+
+        final long now = System.currentTimeMillis();
+        final long written = (Math.min(now, getEndTime(build, now)) - build.startTime) / LOG_LINE_INTERVAL;
+        final long from = request.getNextToken() == null ? 0 : Long.parseLong(request.getNextToken().substring(2));
+        final long to = Math.min(written, from + (request.getLimit() == null ? 10000 : request.getLimit()));
+        final List<OutputLogEvent> events = new ArrayList<OutputLogEvent>();
+        for (long i = from; i < to; ++i) {
+          events.add(new OutputLogEvent().withTimestamp(build.startTime + i * LOG_LINE_INTERVAL).withMessage("[Container] line " + i + " of " + build.id + "\n"));
+        }
+        return new GetLogEventsResult().withEvents(events).withNextForwardToken("f/" + to).withNextBackwardToken("b/" + from);
+      }
+    };
+  }
+
+  @NotNull
+  AmazonS3 s3() {
+    return (AmazonS3) Proxy.newProxyInstance(FakeAWS.class.getClassLoader(), new Class[]{AmazonS3.class}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if ("putObject".equals(method.getName()) && args.length == 1 && args[0] instanceof PutObjectRequest) {
+          call("PutObject");
+          final PutObjectResult res = new PutObjectResult();
+          res.setVersionId(UUID.randomUUID().toString());
+          return res;
+        }
+        if ("shutdown".equals(method.getName())) return null;
+        if ("getObjectMetadata".equals(method.getName())) {
+          call("GetObjectMetadata");
+          final AmazonS3Exception e = new AmazonS3Exception("Not Found");
+          e.setStatusCode(404);
+          throw e;
+        }
+        throw new UnsupportedOperationException("S3 " + method.getName() + " is not supported by the fake");
+      }
+    });
+  }
+
+  private void call(@NotNull String operation) {
+    AtomicLong calls = myCalls.get(operation);
+    if (calls == null) {
+      myCalls.putIfAbsent(operation, new AtomicLong());
+      calls = myCalls.get(operation);
+    }
+    calls.incrementAndGet();
+
+    final Long latency = myLatencies.get(operation);
+    if (latency != null && latency > 0) {
+      try {
+        TimeUnit.MILLISECONDS.sleep(latency);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    final Failure failure = myFailures.get(operation);
+    if (failure != null && ThreadLocalRandom.current().nextDouble() < failure.probability) {
+      myInjectedFailures.incrementAndGet();
+      throw serviceException("Injected " + failure.errorCode, failure.statusCode, failure.errorCode);
+    }
+  }
+
+  @NotNull
+  private static AmazonServiceException serviceException(@NotNull String message, int statusCode, @NotNull String errorCode) {
+    final AmazonServiceException e = new AmazonServiceException(message);
+    e.setStatusCode(statusCode);
+    e.setErrorCode(errorCode);
+    e.setServiceName("FakeAWS");
+    return e;
+  }
+
+  private static long getEndTime(@NotNull FakeBuild build, long now) {
+    long end = build.startTime;
+    final Timeline t = build.timeline;
+    for (int i = 0; i < t.myPhases.size(); ++i) {
+      end += t.myDurations.get(i);
+      if (t.myPhases.get(i).equals(t.myFailedPhase)) break;
+    }
+    return build.stopTime > 0 ? Math.min(end, build.stopTime) : end;
+  }
+
+  /**
+   * Returns the build state at the given time according to its timeline
+   */
+  @NotNull
+  private static Build toBuild(@NotNull FakeBuild build, long now) {
+    final Timeline t = build.timeline;
+    final long endTime = getEndTime(build, now);
+    final boolean stopped = build.stopTime > 0 && build.stopTime <= now;
+    final boolean complete = now >= endTime;
+
+    final List<BuildPhase> phases = new ArrayList<BuildPhase>();
+    long phaseStart = build.startTime;
+    String currentPhase = "COMPLETED";
+    String buildStatus = CodeBuildConstants.SUCCEEDED;
+    for (int i = 0; i < t.myPhases.size() && phaseStart <= Math.min(now, endTime); ++i) {
+      final String type = t.myPhases.get(i);
+      final long phaseEnd = Math.min(endTime, phaseStart + t.myDurations.get(i));
+      final BuildPhase phase = new BuildPhase().withPhaseType(type).withStartTime(new Date(phaseStart));
+      if (phaseEnd <= now) {
+        final boolean failed = type.equals(t.myFailedPhase);
+        final String status = stopped && phaseEnd == endTime ? "STOPPED" : failed ? CodeBuildConstants.FAILED : CodeBuildConstants.SUCCEEDED;
+        phase.withPhaseStatus(status).withEndTime(new Date(phaseEnd)).withDurationInSeconds((phaseEnd - phaseStart) / 1000);
+        if (failed) {
+          phase.withContexts(new PhaseContext().withStatusCode("COMMAND_EXECUTION_ERROR").withMessage("Error while executing command: ./build.sh. Reason: exit status 1"));
+        }
+        if (!CodeBuildConstants.SUCCEEDED.equals(status)) buildStatus = status;
+      } else {
+        currentPhase = type;
+      }
+      phases.add(phase);
+      if (phaseEnd == endTime) break;
+      phaseStart = phaseEnd;
+    }
+    if (complete) {
+      phases.add(new BuildPhase().withPhaseType("COMPLETED").withStartTime(new Date(endTime)));
+    }
+
+    return new Build()
+      .withId(build.id)
+      .withArn("arn:aws:codebuild:eu-west-1:000000000000:build/" + build.id)
+      .withProjectName(build.projectName)
+      .withStartTime(new Date(build.startTime))
+      .withEndTime(complete ? new Date(endTime) : null)
+      .withCurrentPhase(complete ? "COMPLETED" : currentPhase)
+      .withBuildComplete(complete)
+      .withBuildStatus(complete ? buildStatus : CodeBuildConstants.IN_PROGRESS)
+      .withPhases(phases)
+      .withLogs(new LogsLocation().withGroupName(LOG_GROUP).withStreamName(build.id));
+  }
+}
@@ -0,0 +1,33 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.model.BuildPhase;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures calculating the build problem identity of a failed AWS CodeBuild phase.
+ *
+ * @author vbedrosova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProblemIdentityBenchmark {
+  private BuildPhase myFailedPhase;
+  private Map<String, String> myParams;
+
+  @Setup
+  public void setUp() {
+    for (BuildPhase phase : Stubs.build("benchmark-project:0f4c1b7e-41c5-4c9a-9d43-2f0d3f0f2d1a", true).getPhases()) {
+      if (CodeBuildConstants.FAILED.equals(phase.getPhaseStatus())) myFailedPhase = phase;
+    }
+    myParams = Stubs.runnerParams();
+  }
+
+  @Benchmark
+  public String getProblemIdentity() {
+    return CodeBuildRunner.getProblemIdentity("/opt/buildAgent/work/3f2a9c1d0b7e4d52", myFailedPhase, Stubs.PROJECT_NAME, myParams);
+  }
+}
@@ -0,0 +1,43 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.model.Build;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures turning a finished AWS CodeBuild build phases into the build log messages, problems and statistics.
+ *
+ * @author vbedrosova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ReportPhasesBenchmark {
+  @Param({"false", "true"})
+  public boolean failed;
+
+  private CodeBuildRunner myRunner;
+  private AgentRunningBuild myBuild;
+  private Build myCodeBuildBuild;
+  private Map<String, String> myParams;
+
+  @Setup
+  public void setUp() {
+    myRunner = Stubs.runner();
+    myBuild = Stubs.runningBuild(new File(System.getProperty("java.io.tmpdir")));
+    myCodeBuildBuild = Stubs.build("benchmark-project:0f4c1b7e-41c5-4c9a-9d43-2f0d3f0f2d1a", failed);
+    myParams = Stubs.runnerParams();
+  }
+
+  @Benchmark
+  public CodeBuildBuildContext reportPhases() {
+    // a fresh context has no phases reported yet
+    final CodeBuildBuildContext c = new CodeBuildBuildContext(myCodeBuildBuild.getId(), Stubs.PROJECT_NAME, Stubs.PROJECT_NAME, myParams);
+    myRunner.reportPhases(myCodeBuildBuild, c, myBuild);
+    return c;
+  }
+}
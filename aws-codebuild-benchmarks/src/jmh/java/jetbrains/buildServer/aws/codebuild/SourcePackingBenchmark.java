@@ -0,0 +1,93 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import jetbrains.buildServer.util.FileUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures walking and zipping a synthetic checkout directory the way the S3 source archive is prepared.
+ *
+ * @author vbedrosova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SourcePackingBenchmark {
+  @Param({"1000", "10000"})
+  public int files;
+
+  @Param({"4096"})
+  public int fileSize;
+
+  @Param({"1", "4"})
+  public int threads;
+
+  private File myRoot;
+  private File myTempDir;
+  private List<SourceTreeWalker.Entry> myEntries;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    myRoot = Files.createTempDirectory("codebuild-benchmark-checkout").toFile();
+    myTempDir = Files.createTempDirectory("codebuild-benchmark-temp").toFile();
+    final Random random = new Random(42);
+    final byte[] content = new byte[fileSize];
+    for (int i = 0; i < files; ++i) {
+      // half random and half repeated bytes, so that the content is compressible like sources are
+      random.nextBytes(content);
+      for (int j = content.length / 2; j < content.length; ++j) {
+        content[j] = (byte) ('a' + j % 16);
+      }
+      final File file = new File(myRoot, "module" + i % 20 + "/src/dir" + i % 100 + "/File" + i + ".java");
+      Files.createDirectories(file.getParentFile().toPath());
+      Files.write(file.toPath(), content);
+    }
+    myEntries = walk();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    FileUtil.delete(myRoot);
+    FileUtil.delete(myTempDir);
+  }
+
+  @Benchmark
+  public List<SourceTreeWalker.Entry> walk() throws IOException {
+    return new SourceTreeWalker(new SourcePathFilter(Collections.<String>emptyList(), Collections.<String>emptyList()), true).walk(myRoot);
+  }
+
+  @Benchmark
+  public String digest() throws IOException {
+    return CheckoutDirectoryDigest.compute(myEntries);
+  }
+
+  @Benchmark
+  public void pack(Blackhole blackhole) throws IOException {
+    final CountingOutputStream out = new CountingOutputStream();
+    new ParallelZipPacker(threads, 6, Collections.<String>emptyList(), myTempDir, null).pack(myEntries, out);
+    blackhole.consume(out.count);
+  }
+
+  private static final class CountingOutputStream extends OutputStream {
+    private long count;
+
+    @Override
+    public void write(int b) {
+      ++count;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      count += len;
+    }
+  }
+}
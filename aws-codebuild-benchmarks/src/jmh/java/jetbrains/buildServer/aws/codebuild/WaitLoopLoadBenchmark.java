@@ -0,0 +1,137 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.AWSCodeBuild;
+import com.amazonaws.services.codebuild.model.StartBuildRequest;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of the agent wait loop: starts the given number of builds in {@link FakeAWS} and measures
+ * how long {@link CodeBuildRunner#await} takes to see them all finished.
+ *
+ * The builds take about 5 seconds, with a 1 second minimum poll interval the ideal result is close to 6 seconds.
+ * The auxiliary counters show the AWS calls made, the injected throttling errors, the average delay between a build completion
+ * and the poll noticing it and the peak used heap while waiting. Run with -prof gc for the allocation rate.
+ *
+ * @author vbedrosova
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class WaitLoopLoadBenchmark {
+  private static final long BUILD_MILLIS = 3000;
+  private static final long OTHER_PHASE_MILLIS = 200;
+  private static final CompletableFuture<Void> NOT_INTERRUPTED = new CompletableFuture<Void>();
+
+  @Param({"10", "100", "500"})
+  public int builds;
+
+  @Param({"0", "0.2"})
+  public double throttleRate;
+
+  @Param({"0"})
+  public long latencyMillis;
+
+  private FakeAWS myFake;
+  private CodeBuildRunner myRunner;
+  private AgentRunningBuild myBuild;
+  private List<CodeBuildBuildContext> myContexts;
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Counters {
+    public long batchGetBuildsCalls;
+    public long getLogEventsCalls;
+    public long injectedFailures;
+    public long detectionLatencyMillis;
+    public long peakHeapMb;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      batchGetBuildsCalls = 0;
+      getLogEventsCalls = 0;
+      injectedFailures = 0;
+      detectionLatencyMillis = 0;
+      peakHeapMb = 0;
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void setUp() {
+    myFake = new FakeAWS()
+      .project(Stubs.PROJECT_NAME, FakeAWS.Timeline.standard(BUILD_MILLIS, OTHER_PHASE_MILLIS))
+      .throttle("BatchGetBuilds", throttleRate)
+      .throttle("GetLogEvents", throttleRate)
+      .latency("BatchGetBuilds", latencyMillis)
+      .latency("GetLogEvents", latencyMillis);
+    final AWSClientsCache clientsCache = myFake.clientsCache();
+    myRunner = Stubs.runner(clientsCache);
+
+    final Map<String, String> configParams = new HashMap<String, String>();
+    configParams.put(CodeBuildConstants.POLL_INTERVAL_MIN_CONFIG_PARAM, "1");
+    configParams.put(CodeBuildConstants.POLL_INTERVAL_MAX_CONFIG_PARAM, "4");
+    myBuild = Stubs.runningBuild(new File(System.getProperty("java.io.tmpdir")), configParams);
+    myRunner.buildStarted(myBuild);
+
+    final Map<String, String> params = Stubs.runnerParams();
+    params.put(CodeBuildConstants.STREAM_LOGS_PARAM, "true");
+    final AWSCodeBuild client = myFake.codeBuild();
+    myContexts = new ArrayList<CodeBuildBuildContext>();
+    for (int i = 0; i < builds; ++i) {
+      final String id = client.startBuild(new StartBuildRequest().withProjectName(Stubs.PROJECT_NAME)).getBuild().getId();
+      myContexts.add(new CodeBuildBuildContext(id, Stubs.PROJECT_NAME, Stubs.PROJECT_NAME + " #" + i, params));
+    }
+  }
+
+  @TearDown(Level.Invocation)
+  public void tearDown() {
+    myRunner.agentShutdown();
+  }
+
+  @Benchmark
+  public boolean await(Counters counters) {
+    final HeapSampler sampler = new HeapSampler();
+    sampler.start();
+    try {
+      return myRunner.await(myContexts, myBuild, NOT_INTERRUPTED);
+    } finally {
+      sampler.interrupt();
+      counters.batchGetBuildsCalls += myFake.getCalls("BatchGetBuilds");
+      counters.getLogEventsCalls += myFake.getCalls("GetLogEvents");
+      counters.injectedFailures += myFake.getInjectedFailures();
+      counters.detectionLatencyMillis += myFake.getAverageObservationDelay();
+      counters.peakHeapMb += sampler.myPeak / (1024 * 1024);
+    }
+  }
+
+  private static final class HeapSampler extends Thread {
+    private final MemoryMXBean myMemory = ManagementFactory.getMemoryMXBean();
+    private volatile long myPeak;
+
+    private HeapSampler() {
+      super("Heap sampler");
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (!isInterrupted()) {
+        myPeak = Math.max(myPeak, myMemory.getHeapMemoryUsage().getUsed());
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          return;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.AWSCodeBuild;
+import com.amazonaws.services.codebuild.model.StartBuildRequest;
+import jetbrains.buildServer.agent.AgentRunningBuild;
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Checks the AWS calls made and the time taken by {@link CodeBuildRunner#await} for many builds in {@link FakeAWS},
+ * see {@link WaitLoopLoadBenchmark} for the measurements.
+ *
+ * @author vbedrosova
+ */
+@Test
+public class WaitLoopLoadTest {
+  private static final int BUILDS = 250;
+  private static final int BATCH_SIZE = 100; // BatchGetBuilds limit
+  private static final long BUILD_MILLIS = 2000;
+  private static final long OTHER_PHASE_MILLIS = 100;
+  private static final long POLL_INTERVAL_MIN_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  private static final long POLL_INTERVAL_MAX_MILLIS = TimeUnit.SECONDS.toMillis(2);
+  private static final long SLACK_MILLIS = 1000;
+
+  private FakeAWS myFake;
+  private CodeBuildRunner myRunner;
+  private AgentRunningBuild myBuild;
+
+  @BeforeMethod
+  public void setUp() {
+    myFake = new FakeAWS().project(Stubs.PROJECT_NAME, FakeAWS.Timeline.standard(BUILD_MILLIS, OTHER_PHASE_MILLIS));
+    myRunner = Stubs.runner(myFake.clientsCache());
+
+    final Map<String, String> configParams = new HashMap<String, String>();
+    configParams.put(CodeBuildConstants.POLL_INTERVAL_MIN_CONFIG_PARAM, String.valueOf(TimeUnit.MILLISECONDS.toSeconds(POLL_INTERVAL_MIN_MILLIS)));
+    configParams.put(CodeBuildConstants.POLL_INTERVAL_MAX_CONFIG_PARAM, String.valueOf(TimeUnit.MILLISECONDS.toSeconds(POLL_INTERVAL_MAX_MILLIS)));
+    myBuild = Stubs.runningBuild(new File(System.getProperty("java.io.tmpdir")), configParams);
+    myRunner.buildStarted(myBuild);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    myRunner.agentShutdown();
+  }
+
+  public void polls_all_builds_in_batches() {
+    final List<CodeBuildBuildContext> contexts = startBuilds();
+    final long buildsEnd = System.currentTimeMillis() + getBuildDuration();
+
+    final long start = System.currentTimeMillis();
+    assertTrue(myRunner.await(contexts, myBuild, new CompletableFuture<Void>()));
+    final long elapsed = System.currentTimeMillis() - start;
+
+    assertEquals(myFake.getObservedBuilds(), BUILDS);
+    assertTrue(System.currentTimeMillis() - buildsEnd <= POLL_INTERVAL_MAX_MILLIS + SLACK_MILLIS, "Builds completion noticed too late, waited for " + elapsed + " ms");
+    assertTrue(myFake.getAverageObservationDelay() <= POLL_INTERVAL_MAX_MILLIS, "Average completion detection delay " + myFake.getAverageObservationDelay() + " ms");
+
+    // the builds are polled in batches of 100 at most once per the minimum poll interval,
+    // the builds due at slightly different times may take another batch
+    final long maxCalls = 2 * getBatches() * (elapsed / POLL_INTERVAL_MIN_MILLIS + 1);
+    assertTrue(myFake.getCalls("BatchGetBuilds") <= maxCalls, "BatchGetBuilds called " + myFake.getCalls("BatchGetBuilds") + " times, expected at most " + maxCalls);
+  }
+
+  public void throttled_polls_are_retried() {
+    myFake.throttle("BatchGetBuilds", 0.3);
+    final List<CodeBuildBuildContext> contexts = startBuilds();
+    final long buildsEnd = System.currentTimeMillis() + getBuildDuration();
+
+    assertTrue(myRunner.await(contexts, myBuild, new CompletableFuture<Void>()));
+
+    assertEquals(myFake.getObservedBuilds(), BUILDS);
+    assertTrue(myFake.getInjectedFailures() > 0);
+    assertTrue(System.currentTimeMillis() - buildsEnd <= 2 * POLL_INTERVAL_MAX_MILLIS + SLACK_MILLIS, "Builds completion noticed too late");
+
+    // a throttled call is retried with a backoff instead of polling the batch builds one by one
+    final long maxCalls = 4 * getBatches() * ((getBuildDuration() + 2 * POLL_INTERVAL_MAX_MILLIS + SLACK_MILLIS) / POLL_INTERVAL_MIN_MILLIS + 1);
+    assertTrue(myFake.getCalls("BatchGetBuilds") <= maxCalls, "BatchGetBuilds called " + myFake.getCalls("BatchGetBuilds") + " times, expected at most " + maxCalls);
+  }
+
+  @NotNull
+  private List<CodeBuildBuildContext> startBuilds() {
+    final Map<String, String> params = Stubs.runnerParams();
+    final AWSCodeBuild client = myFake.codeBuild();
+    final List<CodeBuildBuildContext> res = new ArrayList<CodeBuildBuildContext>();
+    for (int i = 0; i < BUILDS; ++i) {
+      final String id = client.startBuild(new StartBuildRequest().withProjectName(Stubs.PROJECT_NAME)).getBuild().getId();
+      res.add(new CodeBuildBuildContext(id, Stubs.PROJECT_NAME, Stubs.PROJECT_NAME + " #" + i, params));
+    }
+    return res;
+  }
+
+  private static long getBuildDuration() {
+    return BUILD_MILLIS + (Stubs.PHASES.length - 2) * OTHER_PHASE_MILLIS; // all the phases but BUILD and COMPLETED
+  }
+
+  private static int getBatches() {
+    return (BUILDS + BATCH_SIZE - 1) / BATCH_SIZE;
+  }
+}
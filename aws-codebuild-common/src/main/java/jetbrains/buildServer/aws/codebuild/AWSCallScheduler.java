@@ -0,0 +1,202 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs AWS API calls with a shared per operation rate limit, retrying throttled and transient failures.
+ *
+ * Every operation has a token bucket allowing %codebuild.api.rate.&lt;Operation&gt;% calls per second with bursts of the same size,
+ * callers waiting for a token don't hold any locks. Throttled calls and transient errors are retried up to
+ * %codebuild.api.max.retries% times with exponential backoff and full jitter. Calls and retries are counted per operation.
+ * The clients used with the scheduler shouldn't retry on their own, see {@link AWSClientsCache}.
+ *
+ * @author vbedrosova
+ */
+public class AWSCallScheduler {
+  private static final Logger LOG = Logger.getInstance(AWSCallScheduler.class.getName());
+
+  private static final long BACKOFF_BASE = 200;
+  private static final long BACKOFF_MAX = TimeUnit.SECONDS.toMillis(20);
+  private static final Set<String> THROTTLING_ERROR_CODES = new HashSet<String>(Arrays.asList(
+    "Throttling", "ThrottlingException", "ThrottledException", "TooManyRequestsException",
+    "RequestLimitExceeded", "RequestThrottled", "RequestThrottledException", "SlowDown", "LimitExceededException"
+  ));
+
+  public interface Call<T> {
+    T run();
+  }
+
+  @NotNull
+  private final Map<String, Bucket> myBuckets = new HashMap<String, Bucket>();
+  @NotNull
+  private final Map<String, Statistics> myStatistics = new HashMap<String, Statistics>();
+  @NotNull
+  private volatile Map<String, String> myParams = Collections.emptyMap();
+
+  /**
+   * Applies the rate limits and the retries settings from the parameters
+   */
+  public synchronized void configure(@NotNull Map<String, String> params) {
+    final Map<String, String> settings = new HashMap<String, String>();
+    for (Map.Entry<String, String> e : params.entrySet()) {
+      if (e.getKey().startsWith(CodeBuildConstants.API_CONFIG_PARAM_PREFIX)) settings.put(e.getKey(), e.getValue());
+    }
+    if (settings.equals(myParams)) return;
+    myParams = settings;
+    for (Map.Entry<String, Bucket> e : myBuckets.entrySet()) {
+      e.getValue().setRate(getRate(e.getKey()));
+    }
+  }
+
+  public <T> T call(@NotNull String operation, @NotNull Call<T> call) {
+    return call(operation, Integer.MAX_VALUE, call);
+  }
+
+  /**
+   * Same as {@link #call(String, Call)}, but retries at most the given number of times, e.g. when the result is needed soon
+   */
+  public <T> T call(@NotNull String operation, int maxRetries, @NotNull Call<T> call) {
+    final Statistics statistics = getStatistics(operation);
+    final Bucket bucket = getBucket(operation);
+    maxRetries = Math.min(maxRetries, CodeBuildUtil.getInt(myParams, CodeBuildConstants.API_MAX_RETRIES_CONFIG_PARAM, CodeBuildConstants.DEFAULT_API_MAX_RETRIES));
+    for (int attempt = 0; ; ++attempt) {
+      acquire(bucket);
+      statistics.calls.incrementAndGet();
+      try {
+        return call.run();
+      } catch (AmazonClientException e) {
+        final boolean throttled = isThrottling(e);
+        if (attempt >= maxRetries || !throttled && !isTransient(e)) throw e;
+
+        statistics.retries.incrementAndGet();
+        if (throttled) statistics.throttled.incrementAndGet();
+
+        final long delay = ThreadLocalRandom.current().nextLong(Math.min(BACKOFF_MAX, BACKOFF_BASE << Math.min(attempt, 16)) + 1);
+        LOG.info("AWS " + operation + " call " + (throttled ? "throttled" : "failed") + ", will retry in " + delay + " ms (retry " + (attempt + 1) + " of " + maxRetries + "): " + e.getMessage());
+        sleep(delay);
+      }
+    }
+  }
+
+  /**
+   * Returns the operation name to the calls, retries and throttled calls counts
+   */
+  @NotNull
+  public synchronized Map<String, long[]> getStatistics() {
+    final Map<String, long[]> res = new TreeMap<String, long[]>();
+    for (Map.Entry<String, Statistics> e : myStatistics.entrySet()) {
+      final Statistics s = e.getValue();
+      res.put(e.getKey(), new long[]{s.calls.get(), s.retries.get(), s.throttled.get()});
+    }
+    return res;
+  }
+
+  static boolean isThrottling(@NotNull AmazonClientException e) {
+    if (!(e instanceof AmazonServiceException)) return false;
+    final AmazonServiceException se = (AmazonServiceException) e;
+    return se.getStatusCode() == 429 || THROTTLING_ERROR_CODES.contains(se.getErrorCode());
+  }
+
+  static boolean isTransient(@NotNull AmazonClientException e) {
+    if (e instanceof AmazonServiceException) {
+      final int statusCode = ((AmazonServiceException) e).getStatusCode();
+      return statusCode >= 500 || statusCode == 408;
+    }
+    // isRetryable() is true for any client side failure, only the I/O errors are worth retrying
+    return e.getCause() instanceof IOException;
+  }
+
+  @NotNull
+  private synchronized Bucket getBucket(@NotNull String operation) {
+    Bucket bucket = myBuckets.get(operation);
+    if (bucket == null) {
+      bucket = new Bucket(getRate(operation));
+      myBuckets.put(operation, bucket);
+    }
+    return bucket;
+  }
+
+  @NotNull
+  private synchronized Statistics getStatistics(@NotNull String operation) {
+    Statistics statistics = myStatistics.get(operation);
+    if (statistics == null) {
+      statistics = new Statistics();
+      myStatistics.put(operation, statistics);
+    }
+    return statistics;
+  }
+
+  private double getRate(@NotNull String operation) {
+    String value = myParams.get(CodeBuildConstants.API_RATE_CONFIG_PARAM_PREFIX + operation);
+    if (value == null) value = CodeBuildConstants.DEFAULT_API_RATES.get(operation);
+    if (value != null) {
+      try {
+        return Double.parseDouble(value.trim());
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return CodeBuildConstants.DEFAULT_API_RATE;
+  }
+
+  private static void acquire(@NotNull Bucket bucket) {
+    sleep(bucket.reserve());
+  }
+
+  private static void sleep(long millis) {
+    if (millis <= 0) return;
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new AmazonClientException("Interrupted while waiting to call AWS", e);
+    }
+  }
+
+  /**
+   * Token bucket which lets the callers reserve future tokens, so a caller just sleeps for the returned time
+   */
+  private static final class Bucket {
+    private double myRate; // tokens per millisecond, not limited if not positive
+    private double myCapacity;
+    private double myTokens;
+    private long myLastRefill = System.currentTimeMillis();
+
+    private Bucket(double ratePerSecond) {
+      setRate(ratePerSecond);
+      myTokens = myCapacity;
+    }
+
+    private synchronized void setRate(double ratePerSecond) {
+      myRate = ratePerSecond / 1000;
+      myCapacity = Math.max(1, ratePerSecond);
+      myTokens = Math.min(myTokens, myCapacity);
+    }
+
+    /**
+     * Takes a token and returns the time to wait for it
+     */
+    private synchronized long reserve() {
+      if (myRate <= 0) return 0;
+      final long now = System.currentTimeMillis();
+      myTokens = Math.min(myCapacity, myTokens + (now - myLastRefill) * myRate);
+      myLastRefill = now;
+      myTokens -= 1;
+      return myTokens >= 0 ? 0 : (long) Math.ceil(-myTokens / myRate);
+    }
+  }
+
+  private static final class Statistics {
+    @NotNull private final AtomicLong calls = new AtomicLong();
+    @NotNull private final AtomicLong retries = new AtomicLong();
+    @NotNull private final AtomicLong throttled = new AtomicLong();
+  }
+}
@@ -0,0 +1,303 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.AWSSessionCredentials;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.services.codebuild.AWSCodeBuild;
+import com.amazonaws.services.codebuild.AWSCodeBuildClientBuilder;
+import com.amazonaws.services.logs.AWSLogs;
+import com.amazonaws.services.logs.AWSLogsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import jetbrains.buildServer.util.amazon.AWSClients;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps AWS clients created for the same AWS connection settings (credentials type, region, role, etc.)
+ * so that connections and temporary credential sessions are reused between subsequent calls.
+ *
+ * Entries are dropped {@link #EXPIRATION_MARGIN} before their temporary credentials session expires, after {@link #MAX_AGE}
+ * when the expiration isn't known, and after {@link #IDLE_TTL} of inactivity. The expired entries are dropped every
+ * {@link #EVICTION_PERIOD} while the cache isn't empty and when their last lease is closed. The clients are handed out
+ * in {@link Lease}s, a dropped entry is shut down once all its leases are closed, as SDK clients keep their connection
+ * pools registered until shut down.
+ *
+ * @author vbedrosova
+ */
+public class AWSClientsCache {
+  static final long MAX_AGE = TimeUnit.MINUTES.toMillis(10);
+  static final long IDLE_TTL = TimeUnit.MINUTES.toMillis(5);
+  static final long EXPIRATION_MARGIN = TimeUnit.MINUTES.toMillis(5);
+  static final long EVICTION_PERIOD = TimeUnit.MINUTES.toMillis(1);
+
+  // AWS connection settings of the temporary credentials, see AWSCommonParams
+  private static final String TEMP_CREDENTIALS_OPTION = "aws.temp.credentials";
+  private static final String SESSION_DURATION_PARAM = "aws.session.duration";
+  private static final long DEFAULT_SESSION_DURATION = TimeUnit.MINUTES.toMillis(30);
+
+  @NotNull
+  private final Map<Map<String, String>, Entry> myEntries = new HashMap<Map<String, String>, Entry>();
+  @NotNull
+  private final Set<Entry> myRetiredEntries = new HashSet<Entry>(); // still leased
+  @NotNull
+  private final AWSCallScheduler myCallScheduler = new AWSCallScheduler();
+  @Nullable
+  private ScheduledExecutorService myEvictor; // runs while the cache isn't empty
+
+  /**
+   * Returns the scheduler shared by all the AWS calls made with the cached clients
+   */
+  @NotNull
+  public AWSCallScheduler getCallScheduler() {
+    return myCallScheduler;
+  }
+
+  /**
+   * Returns the clients for the AWS connection settings. The lease must be closed once the clients aren't needed anymore:
+   * the clients dropped from the cache are shut down when their last lease is closed.
+   */
+  @NotNull
+  public Lease acquire(@NotNull Map<String, String> params) {
+    return new Lease(getEntry(params));
+  }
+
+  /**
+   * Drops the clients created for the parameters, e.g. after credentials were rejected
+   */
+  public synchronized void invalidate(@NotNull Map<String, String> params) {
+    final Entry entry = myEntries.remove(CodeBuildUtil.getAWSConnectionParams(params));
+    if (entry != null) retire(entry);
+  }
+
+  public synchronized void dispose() {
+    for (Entry e : myEntries.values()) {
+      e.shutdown();
+    }
+    myEntries.clear();
+    for (Entry e : myRetiredEntries) {
+      e.shutdown();
+    }
+    myRetiredEntries.clear();
+    stopEvictor();
+  }
+
+  @NotNull
+  protected AWSCodeBuild createCodeBuildClient(@NotNull AWSClients clients) {
+    return AWSCodeBuildClientBuilder.standard()
+      .withClientConfiguration(withoutRetries(clients.getClientConfiguration()))
+      .withCredentials(getCredentialsProvider(clients))
+      .withRegion(clients.getRegion())
+      .build();
+  }
+
+  @NotNull
+  protected AmazonS3 createS3Client(@NotNull AWSClients clients) {
+    return clients.createS3Client();
+  }
+
+  @NotNull
+  protected AWSLogs createLogsClient(@NotNull AWSClients clients) {
+    return AWSLogsClientBuilder.standard()
+      .withClientConfiguration(withoutRetries(clients.getClientConfiguration()))
+      .withCredentials(getCredentialsProvider(clients))
+      .withRegion(clients.getRegion())
+      .build();
+  }
+
+  /**
+   * CodeBuild and CloudWatch Logs calls are retried by {@link AWSCallScheduler}, the SDK retries would multiply with its own
+   */
+  @NotNull
+  private static ClientConfiguration withoutRetries(@NotNull ClientConfiguration configuration) {
+    return new ClientConfiguration(configuration).withRetryPolicy(PredefinedRetryPolicies.NO_RETRY_POLICY);
+  }
+
+  @NotNull
+  private static AWSCredentialsProvider getCredentialsProvider(@NotNull AWSClients clients) {
+    final AWSCredentials credentials = clients.getCredentials();
+    return credentials == null ? DefaultAWSCredentialsProviderChain.getInstance() : new AWSStaticCredentialsProvider(credentials);
+  }
+
+  @NotNull
+  private synchronized Entry getEntry(@NotNull Map<String, String> params) {
+    final long now = System.currentTimeMillis();
+    evictExpired(now);
+
+    final Map<String, String> key = CodeBuildUtil.getAWSConnectionParams(params);
+    Entry entry = myEntries.get(key);
+    if (entry == null) {
+      final AWSClients clients = createAWSClients(params);
+      entry = new Entry(clients, now, now + getMaxAge(params, clients));
+      myEntries.put(key, entry);
+      startEvictor();
+    }
+    entry.lastAccessTime = now;
+    ++entry.holders;
+    return entry;
+  }
+
+  private synchronized void release(@NotNull Entry entry) {
+    if (--entry.holders == 0) {
+      if (myRetiredEntries.remove(entry)) {
+        entry.shutdown();
+      } else {
+        evictExpired(System.currentTimeMillis());
+      }
+    }
+  }
+
+  /**
+   * Temporary credentials are requested for the session duration when the clients are created,
+   * the clients are dropped in advance so that no call is made with the expired credentials
+   */
+  private static long getMaxAge(@NotNull Map<String, String> params, @NotNull AWSClients clients) {
+    if (!(clients.getCredentials() instanceof AWSSessionCredentials) && !TEMP_CREDENTIALS_OPTION.equals(params.get(AWSCommonParams.CREDENTIALS_TYPE_PARAM))) {
+      return MAX_AGE;
+    }
+    long duration = DEFAULT_SESSION_DURATION;
+    final String durationParam = params.get(SESSION_DURATION_PARAM);
+    if (durationParam != null) {
+      try {
+        duration = TimeUnit.SECONDS.toMillis(Long.parseLong(durationParam.trim()));
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return Math.max(duration - EXPIRATION_MARGIN, EVICTION_PERIOD);
+  }
+
+  private void startEvictor() {
+    if (myEvictor != null) return;
+    myEvictor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("AWS clients cache evictor"));
+    myEvictor.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        synchronized (AWSClientsCache.this) {
+          evictExpired(System.currentTimeMillis());
+          if (myEntries.isEmpty()) stopEvictor();
+        }
+      }
+    }, EVICTION_PERIOD, EVICTION_PERIOD, TimeUnit.MILLISECONDS);
+  }
+
+  private void stopEvictor() {
+    if (myEvictor == null) return;
+    myEvictor.shutdownNow();
+    myEvictor = null;
+  }
+
+  /**
+   * Shuts down the entry removed from the cache at once or when its last lease is closed
+   */
+  private void retire(@NotNull Entry entry) {
+    if (entry.holders == 0) {
+      entry.shutdown();
+    } else {
+      myRetiredEntries.add(entry);
+    }
+  }
+
+  @NotNull
+  private static AWSClients createAWSClients(@NotNull Map<String, String> params) {
+    return AWSCommonParams.withAWSClients(params, new AWSCommonParams.WithAWSClients<AWSClients, RuntimeException>() {
+      @Nullable
+      @Override
+      public AWSClients run(@NotNull AWSClients clients) throws RuntimeException {
+        return clients;
+      }
+    });
+  }
+
+  private void evictExpired(long now) {
+    final Iterator<Entry> it = myEntries.values().iterator();
+    while (it.hasNext()) {
+      final Entry e = it.next();
+      if (now - e.lastAccessTime > IDLE_TTL || now >= e.expirationTime) {
+        it.remove();
+        retire(e);
+      }
+    }
+  }
+
+  /**
+   * Clients of one AWS connection handed out by {@link #acquire}
+   */
+  public final class Lease {
+    @NotNull private final Entry myEntry;
+    private boolean myClosed;
+
+    private Lease(@NotNull Entry entry) {
+      myEntry = entry;
+    }
+
+    @NotNull
+    public AWSCodeBuild getCodeBuildClient() {
+      synchronized (myEntry) {
+        if (myEntry.codeBuildClient == null) {
+          myEntry.codeBuildClient = createCodeBuildClient(myEntry.clients);
+        }
+        return myEntry.codeBuildClient;
+      }
+    }
+
+    @NotNull
+    public AmazonS3 getS3Client() {
+      synchronized (myEntry) {
+        if (myEntry.s3Client == null) {
+          myEntry.s3Client = createS3Client(myEntry.clients);
+        }
+        return myEntry.s3Client;
+      }
+    }
+
+    @NotNull
+    public AWSLogs getLogsClient() {
+      synchronized (myEntry) {
+        if (myEntry.logsClient == null) {
+          myEntry.logsClient = createLogsClient(myEntry.clients);
+        }
+        return myEntry.logsClient;
+      }
+    }
+
+    public void close() {
+      synchronized (this) {
+        if (myClosed) return;
+        myClosed = true;
+      }
+      release(myEntry);
+    }
+  }
+
+  private static final class Entry {
+    @NotNull private final AWSClients clients;
+    private final long expirationTime;
+    private long lastAccessTime;
+    private int holders; // open leases
+    @Nullable private AWSCodeBuild codeBuildClient;
+    @Nullable private AmazonS3 s3Client;
+    @Nullable private AWSLogs logsClient;
+
+    private Entry(@NotNull AWSClients clients, long creationTime, long expirationTime) {
+      this.clients = clients;
+      this.expirationTime = expirationTime;
+      this.lastAccessTime = creationTime;
+    }
+
+    private synchronized void shutdown() {
+      if (codeBuildClient != null) codeBuildClient.shutdown();
+      if (s3Client != null) s3Client.shutdown();
+      if (logsClient != null) logsClient.shutdown();
+    }
+  }
+}
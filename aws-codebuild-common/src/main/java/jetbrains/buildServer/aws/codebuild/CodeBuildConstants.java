@@ -20,12 +20,62 @@ public interface CodeBuildConstants {
   String PROJECT_NAME_PARAM = "codebuild.project.name";
   String PROJECT_NAME_LABEL = "Project name";
 
+  String ENV_MATRIX_PARAM = "codebuild.env.matrix";
+  String ENV_MATRIX_LABEL = "Environment matrix";
+
+  String ENV_INCLUDE_PARAM = "codebuild.env.include";
+  String ENV_INCLUDE_LABEL = "Pass system properties";
+
+  String ENV_EXCLUDE_PARAM = "codebuild.env.exclude";
+  String ENV_EXCLUDE_LABEL = "Skip system properties";
+
+  String ENV_MAX_VALUE_LENGTH_CONFIG_PARAM = "codebuild.env.max.value.length";
+  String ENV_SIZE_BUDGET_CONFIG_PARAM = "codebuild.env.size.budget";
+  int DEFAULT_ENV_MAX_VALUE_LENGTH = 0; // not limited
+  int DEFAULT_ENV_SIZE_BUDGET = 0; // not limited
+  String ENV_PAYLOAD_VARIABLE = "TEAMCITY_SYSTEM_PROPERTIES_GZ";
+
+  String MAX_CONCURRENT_STARTS_PARAM = "codebuild.max.concurrent.starts";
+  String MAX_CONCURRENT_STARTS_LABEL = "Max concurrent starts";
+  int DEFAULT_MAX_CONCURRENT_STARTS = 10;
+
+  String REUSE_BUILDS_PARAM = "codebuild.reuse";
+  String REUSE_BUILDS_LABEL = "Reuse identical builds";
+  String REUSE_MAX_AGE_MINUTES_CONFIG_PARAM = "codebuild.reuse.max.age.minutes";
+  String REUSE_LOOKUP_BUILDS_CONFIG_PARAM = "codebuild.reuse.lookup.builds";
+  long DEFAULT_REUSE_MAX_AGE_MINUTES = 24 * 60;
+  int DEFAULT_REUSE_LOOKUP_BUILDS = 20;
+  String FINGERPRINT_VARIABLE = "TEAMCITY_CODEBUILD_FINGERPRINT";
+
   String USE_BUILD_REVISION_PARAM = "codebuild.use.build.revision";
   String USE_BUILD_REVISION_LABEL = "TeamCity VCS revision";
 
   String SOURCE_VERSION_PARAM = "codebuild.source.version";
   String SOURCE_VERSION_LABEL = "Source version";
 
+  String SOURCE_INCLUDE_PARAM = "codebuild.source.include";
+  String SOURCE_INCLUDE_LABEL = "Include rules";
+
+  String SOURCE_EXCLUDE_PARAM = "codebuild.source.exclude";
+  String SOURCE_EXCLUDE_LABEL = "Exclude rules";
+
+  String SOURCE_USE_IGNORE_FILES_PARAM = "codebuild.source.use.ignore.files";
+  String SOURCE_USE_IGNORE_FILES_LABEL = "Honor ignore files";
+
+  String SOURCE_UPLOAD_STREAMING_CONFIG_PARAM = "codebuild.source.upload.streaming";
+  String SOURCE_UPLOAD_PART_SIZE_MB_CONFIG_PARAM = "codebuild.source.upload.part.size.mb";
+  String SOURCE_UPLOAD_THREADS_CONFIG_PARAM = "codebuild.source.upload.threads";
+  String SOURCE_UPLOAD_SKIP_UNCHANGED_CONFIG_PARAM = "codebuild.source.upload.skip.unchanged";
+  String SOURCE_DIGEST_METADATA_KEY = "teamcity-source-digest";
+  String SOURCE_ZIP_THREADS_CONFIG_PARAM = "codebuild.source.zip.threads";
+  String SOURCE_ZIP_LEVEL_CONFIG_PARAM = "codebuild.source.zip.level";
+  String SOURCE_ZIP_STORED_EXTENSIONS_CONFIG_PARAM = "codebuild.source.zip.stored.extensions";
+  String DEFAULT_SOURCE_ZIP_STORED_EXTENSIONS = "zip,jar,war,ear,gz,tgz,bz2,xz,7z,rar,png,jpg,jpeg,gif,webp,mp3,mp4,woff,woff2";
+  String SOURCE_ZIP_CACHE_SIZE_MB_CONFIG_PARAM = "codebuild.source.zip.cache.size.mb";
+  String SOURCE_ZIP_CACHE_DIR = "aws-codebuild-source-zip";
+  int DEFAULT_SOURCE_UPLOAD_PART_SIZE_MB = 16;
+  int DEFAULT_SOURCE_UPLOAD_THREADS = 4;
+
   String BUILD_SPEC_PARAM = "codebuild.build.spec";
   String BUILD_SPEC_LABEL = "Build specification";
 
@@ -45,6 +95,19 @@ public interface CodeBuildConstants {
   String ARTIFACTS_S3_ZIP_PARAM = "codebuild.artifacts.s3.zip";
   String ARTIFACTS_S3_ZIP_LABEL = "Zip artifacts";
 
+  String ARTIFACTS_DOWNLOAD_PARAM = "codebuild.artifacts.download";
+  String ARTIFACTS_DOWNLOAD_LABEL = "Publish artifacts";
+
+  String ARTIFACTS_DOWNLOAD_PATH_PARAM = "codebuild.artifacts.download.path";
+  String ARTIFACTS_DOWNLOAD_PATH_LABEL = "Artifacts path";
+
+  String ARTIFACTS_DOWNLOAD_THREADS_CONFIG_PARAM = "codebuild.artifacts.download.threads";
+  String ARTIFACTS_DOWNLOAD_PART_SIZE_MB_CONFIG_PARAM = "codebuild.artifacts.download.part.size.mb";
+  int DEFAULT_ARTIFACTS_DOWNLOAD_THREADS = 4;
+  int DEFAULT_ARTIFACTS_DOWNLOAD_PART_SIZE_MB = 16;
+  String ARTIFACTS_DOWNLOAD_MAX_BUFFERED_MB_CONFIG_PARAM = "codebuild.artifacts.download.max.buffered.mb";
+  long DEFAULT_ARTIFACTS_DOWNLOAD_MAX_BUFFERED_MB = 64;
+
   String WAIT_PARAM = "codebuild.wait";
   String WAIT_NONE = "none";
   String WAIT_STEP = "step";
@@ -53,6 +116,28 @@ public interface CodeBuildConstants {
   String WAIT_NONE_LABEL = "Do not wait";
   String WAIT_STEP_LABEL = "On step finish";
   String WAIT_BUILD_LABEL = "On build finish";
+  String WAIT_SERVER = "server";
+  String WAIT_SERVER_LABEL = "On build finish, without agent";
+
+  String TRACK_SERVICE_MESSAGE = "codebuildTrack"; // sent by the agent when it leaves waiting to the server
+  String TRACK_STEP_ID_ATTRIBUTE = "stepId";
+  String TRACK_BUILD_IDS_ATTRIBUTE = "buildIds";
+  String DETACH_SERVICE_MESSAGE = "buildDetachedFromAgent";
+  String SERVER_WAIT_SUPPORTED_CONFIG_PARAM = "codebuild.server.wait.supported"; // set by the server able to finish the detached builds
+  String SERVER_POLL_INTERVAL_SERVER_PROPERTY = "teamcity.codebuild.tracker.poll.interval.seconds";
+  long DEFAULT_SERVER_POLL_INTERVAL_SECONDS = 15;
+
+  String JOURNAL_DIR = "aws-codebuild-journal";
+
+  String FAIL_FAST_PARAM = "codebuild.fail.fast";
+  String FAIL_FAST_LABEL = "Fail fast";
+
+  String STREAM_LOGS_PARAM = "codebuild.logs.stream";
+  String STREAM_LOGS_LABEL = "Stream build log";
+  String MAX_LOG_LINES_PER_POLL_CONFIG_PARAM = "codebuild.logs.max.lines.per.poll";
+  int DEFAULT_MAX_LOG_LINES_PER_POLL = 1000;
+  String MAX_LOG_LINES_AFTER_COMPLETION_CONFIG_PARAM = "codebuild.logs.max.lines.after.completion";
+  int DEFAULT_MAX_LOG_LINES_AFTER_COMPLETION = 100000;
 
   String TIMEOUT_MINUTES_PARAM = "codebuild.timeout.minutes";
   String TIMEOUT_MINUTES_LABEL = "Timeout (minutes)";
@@ -60,7 +145,10 @@ public interface CodeBuildConstants {
 
   String BUILD_PROBLEM_TYPE = "CODEBUILD_FAILURE";
 
-  long POLL_INTERVAL = 10000;
+  String POLL_INTERVAL_MIN_CONFIG_PARAM = "codebuild.poll.interval.min.seconds";
+  String POLL_INTERVAL_MAX_CONFIG_PARAM = "codebuild.poll.interval.max.seconds";
+  long DEFAULT_POLL_INTERVAL_MIN_SECONDS = 2;
+  long DEFAULT_POLL_INTERVAL_MAX_SECONDS = 10; // the former fixed poll interval
 
   String SUCCEEDED = "SUCCEEDED";
   String FAILED = "FAILED";
@@ -72,8 +160,28 @@ public interface CodeBuildConstants {
     USE_BUILD_REVISION_PARAM, "false"
   );
 
+  String API_CONFIG_PARAM_PREFIX = "codebuild.api.";
+  String API_RATE_CONFIG_PARAM_PREFIX = API_CONFIG_PARAM_PREFIX + "rate."; // followed by the operation name, e.g. codebuild.api.rate.StartBuild
+  String API_MAX_RETRIES_CONFIG_PARAM = API_CONFIG_PARAM_PREFIX + "max.retries";
+  int DEFAULT_API_MAX_RETRIES = 8;
+  double DEFAULT_API_RATE = 10;
+  Map<String, String> DEFAULT_API_RATES = CollectionsUtil.asMap(
+    "StartBuild", "5",
+    "StopBuild", "5",
+    "ListProjects", "2",
+    "GetLogEvents", "10"
+  );
+
+  String PROJECTS_CACHE_TTL_SERVER_PROPERTY = "teamcity.codebuild.projects.cache.ttl.seconds";
+  long DEFAULT_PROJECTS_CACHE_TTL_SECONDS = 300;
+
   String GIT_HUB_VCS_ROOT_ID_CONFIG_PARAM = "codebuild.github.vcs.root.id";
   String UNKNOWN_GIT_HUB_VCS_ROOT_ID = "<unknown>";
 
   String BUILD_ID_SYSTEM_PROPERTY_FORMAT = "aws.codebuild.%s.build.id";
+
+  String STATISTIC_KEY_FORMAT = "codebuild.%s.%s"; // project name with the environment matrix overrides, phase or value name
+  String QUEUED_TIME_STATISTIC = "queuedTime";
+  String TOTAL_DURATION_STATISTIC = "totalDuration";
+  String PROVISIONING_PHASE = "PROVISIONING";
 }
\ No newline at end of file
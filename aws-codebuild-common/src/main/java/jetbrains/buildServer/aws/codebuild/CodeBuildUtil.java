@@ -2,19 +2,17 @@
 
 package jetbrains.buildServer.aws.codebuild;
 
+import com.amazonaws.services.codebuild.AWSCodeBuild;
 import com.amazonaws.services.codebuild.model.BatchGetProjectsRequest;
+import com.amazonaws.services.codebuild.model.BuildPhase;
 import com.amazonaws.services.codebuild.model.Project;
 import jetbrains.buildServer.util.CollectionsUtil;
 import jetbrains.buildServer.util.Converter;
-import jetbrains.buildServer.util.amazon.AWSClients;
-import jetbrains.buildServer.util.amazon.AWSCommonParams;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Collection;
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.regex.Pattern;
 
 import static jetbrains.buildServer.aws.codebuild.CodeBuildConstants.*;
 
@@ -24,12 +22,122 @@ import static jetbrains.buildServer.aws.codebuild.CodeBuildConstants.*;
 public final class CodeBuildUtil {
 
   public static final String ARN_AWS_S3 = "arn:aws:s3:::";
+  private static final String AWS_PARAMS_PREFIX = "aws.";
+  private static final String SECURE_AWS_PARAMS_PREFIX = "secure:" + AWS_PARAMS_PREFIX;
+  private static final Pattern COMMIT_ID = Pattern.compile("[0-9a-fA-F]{40}|[0-9a-fA-F]{64}");
 
   @Nullable
   public static String getProjectName(@NotNull Map<String, String> params) {
     return params.get(PROJECT_NAME_PARAM);
   }
 
+  /**
+   * Returns the distinct project names, the project name parameter may contain several comma or newline separated names
+   */
+  @NotNull
+  public static List<String> getProjectNames(@NotNull Map<String, String> params) {
+    final String value = getProjectName(params);
+    if (value == null) return Collections.emptyList();
+    final List<String> res = new ArrayList<String>();
+    for (String name : value.split("[,\r\n]+")) {
+      final String trimmed = name.trim();
+      if (!trimmed.isEmpty() && !res.contains(trimmed)) res.add(trimmed);
+    }
+    return res;
+  }
+
+  /**
+   * Returns the environment variable overrides for each build to start per project,
+   * a single empty map if there is no environment matrix
+   */
+  @NotNull
+  public static List<Map<String, String>> getEnvironmentMatrix(@NotNull Map<String, String> params) {
+    final List<Map<String, String>> res = new ArrayList<Map<String, String>>();
+    for (String row : getEnvironmentMatrixRows(params)) {
+      final Map<String, String> overrides = parseEnvironmentMatrixRow(row);
+      if (overrides != null) res.add(overrides);
+    }
+    if (res.isEmpty()) res.add(Collections.<String, String>emptyMap());
+    return res;
+  }
+
+  @NotNull
+  static List<String> getEnvironmentMatrixRows(@NotNull Map<String, String> params) {
+    final String value = params.get(ENV_MATRIX_PARAM);
+    if (value == null) return Collections.emptyList();
+    final List<String> res = new ArrayList<String>();
+    for (String line : value.split("[\r\n]+")) {
+      final String trimmed = line.trim();
+      if (!trimmed.isEmpty() && !trimmed.startsWith("#")) res.add(trimmed);
+    }
+    return res;
+  }
+
+  /**
+   * Parses "NAME1=value1; NAME2=value2" environment matrix row, returns null if the row is malformed
+   */
+  @Nullable
+  static Map<String, String> parseEnvironmentMatrixRow(@NotNull String row) {
+    final Map<String, String> res = new LinkedHashMap<String, String>();
+    for (String pair : row.split(";")) {
+      if (pair.trim().isEmpty()) continue;
+      final int eq = pair.indexOf('=');
+      if (eq <= 0) return null;
+      final String name = pair.substring(0, eq).trim();
+      if (name.isEmpty()) return null;
+      res.put(name, pair.substring(eq + 1).trim());
+    }
+    return res.isEmpty() ? null : res;
+  }
+
+  /**
+   * Returns the patterns of the system property names to pass as the environment variables, '*' matches any characters
+   */
+  @NotNull
+  public static List<String> getEnvIncludes(@NotNull Map<String, String> params) {
+    return parsePropertyNamePatterns(params.get(ENV_INCLUDE_PARAM));
+  }
+
+  @NotNull
+  public static List<String> getEnvExcludes(@NotNull Map<String, String> params) {
+    return parsePropertyNamePatterns(params.get(ENV_EXCLUDE_PARAM));
+  }
+
+  /**
+   * Property name patterns are newline-separated, unlike the path patterns there are no comments and no negation
+   */
+  @NotNull
+  private static List<String> parsePropertyNamePatterns(@Nullable String text) {
+    if (text == null) return Collections.emptyList();
+    final List<String> res = new ArrayList<String>();
+    for (String line : text.split("[\r\n]+")) {
+      final String trimmed = line.trim();
+      if (!trimmed.isEmpty()) res.add(trimmed);
+    }
+    return res;
+  }
+
+  /**
+   * Returns the reason the property name pattern is invalid or null if it's valid
+   */
+  @Nullable
+  public static String validatePropertyNamePattern(@NotNull String pattern) {
+    for (int i = 0; i < pattern.length(); ++i) {
+      final char c = pattern.charAt(i);
+      if (Character.isWhitespace(c)) return "'" + pattern + "' must be a single property name, put each name on a separate line";
+      if (c == '?' || c == '[' || c == ']' || c == '!') return "'" + pattern + "' may only contain the '*' wildcard";
+    }
+    return null;
+  }
+
+  public static int getMaxConcurrentStarts(@NotNull Map<String, String> params) {
+    return getInt(params, MAX_CONCURRENT_STARTS_PARAM, DEFAULT_MAX_CONCURRENT_STARTS);
+  }
+
+  public static boolean isReuseBuilds(@NotNull Map<String, String> params) {
+    return Boolean.parseBoolean(params.get(REUSE_BUILDS_PARAM));
+  }
+
   public static boolean isUseBuildRevision(@NotNull Map<String, String> params) {
     return Boolean.parseBoolean(params.get(USE_BUILD_REVISION_PARAM));
   }
@@ -39,6 +147,29 @@ public final class CodeBuildUtil {
     return params.get(SOURCE_VERSION_PARAM);
   }
 
+  /**
+   * Returns true if the source version identifies the exact sources: the build revision (the commit or the uploaded S3 object version)
+   * or a full commit id, rather than a branch, a tag or the latest sources
+   */
+  public static boolean isResolvedSourceVersion(@NotNull Map<String, String> params, @Nullable String sourceVersion) {
+    if (sourceVersion == null || sourceVersion.trim().isEmpty()) return false;
+    return isUseBuildRevision(params) || COMMIT_ID.matcher(sourceVersion.trim()).matches();
+  }
+
+  @NotNull
+  public static List<String> getSourceIncludes(@NotNull Map<String, String> params) {
+    return SourcePathFilter.parsePatterns(params.get(SOURCE_INCLUDE_PARAM));
+  }
+
+  @NotNull
+  public static List<String> getSourceExcludes(@NotNull Map<String, String> params) {
+    return SourcePathFilter.parsePatterns(params.get(SOURCE_EXCLUDE_PARAM));
+  }
+
+  public static boolean isUseIgnoreFiles(@NotNull Map<String, String> params) {
+    return Boolean.parseBoolean(params.get(SOURCE_USE_IGNORE_FILES_PARAM));
+  }
+
   @Nullable
   public static String getBuildSpec(@NotNull Map<String, String> params) {
     return params.get(BUILD_SPEC_PARAM);
@@ -62,6 +193,15 @@ public final class CodeBuildUtil {
     return params.get(ARTIFACTS_S3_BUCKET_PARAM);
   }
 
+  public static boolean isDownloadArtifacts(@NotNull Map<String, String> params) {
+    return isUploadS3Artifacts(params) && Boolean.parseBoolean(params.get(ARTIFACTS_DOWNLOAD_PARAM));
+  }
+
+  @Nullable
+  public static String getArtifactsDownloadPath(@NotNull Map<String, String> params) {
+    return params.get(ARTIFACTS_DOWNLOAD_PATH_PARAM);
+  }
+
   @Nullable
   public static String getTimeoutMinutes(@NotNull Map<String, String> params) {
     return params.get(TIMEOUT_MINUTES_PARAM);
@@ -75,6 +215,18 @@ public final class CodeBuildUtil {
     return WAIT_BUILD.equals(params.get(WAIT_PARAM));
   }
 
+  public static boolean isWaitServer(@NotNull Map<String, String> params) {
+    return WAIT_SERVER.equals(params.get(WAIT_PARAM));
+  }
+
+  public static boolean isFailFast(@NotNull Map<String, String> params) {
+    return Boolean.parseBoolean(params.get(FAIL_FAST_PARAM));
+  }
+
+  public static boolean isStreamLogs(@NotNull Map<String, String> params) {
+    return Boolean.parseBoolean(params.get(STREAM_LOGS_PARAM));
+  }
+
   @NotNull
   public static int getTimeoutMinutesInt(@NotNull Map<String, String> params) {
     try {
@@ -84,6 +236,26 @@ public final class CodeBuildUtil {
     }
   }
 
+  public static int getInt(@NotNull Map<String, String> params, @NotNull String name, int defaultValue) {
+    final String value = params.get(name);
+    if (value == null) return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  public static long getLong(@NotNull Map<String, String> params, @NotNull String name, long defaultValue) {
+    final String value = params.get(name);
+    if (value == null) return defaultValue;
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
   public static boolean isSucceeded(@NotNull String status) {
     return CodeBuildConstants.SUCCEEDED.equals(status);
   }
@@ -96,6 +268,31 @@ public final class CodeBuildUtil {
     return CodeBuildConstants.FAILED.equals(status);
   }
 
+  /**
+   * Returns the failed phase description with the failure reasons reported by AWS CodeBuild
+   */
+  @NotNull
+  public static String getPhaseProblemDescription(@NotNull BuildPhase failedPhase, @NotNull String name) {
+    final StringBuilder res = new StringBuilder(name);
+    res.append(" ").append(failedPhase.getPhaseType()).append(" phase ");
+    if (failedPhase.getContexts().isEmpty()) {
+      if (isFailed(failedPhase.getPhaseStatus())) {
+        res.append("failed");
+      } else {
+        res.append("finished with status: ").append(failedPhase.getPhaseStatus());
+      }
+    } else {
+      res.append(": ");
+      for (int i = 0; i < failedPhase.getContexts().size(); ++i) {
+        if (i > 0) {
+          res.append("; ");
+        }
+        res.append(failedPhase.getContexts().get(i).getMessage());
+      }
+    }
+    return res.toString();
+  }
+
   @NotNull
   public static String getBuildLink(@NotNull String buildId, @NotNull String region) {
     return String.format("https://console.aws.amazon.com/codebuild/home?region=%s#/builds/%s/view/new", region, buildId);
@@ -106,28 +303,58 @@ public final class CodeBuildUtil {
     return String.format("https://console.aws.amazon.com/cloudwatch/home?region=%s#logEventViewer:group=/aws/codebuild/%s;stream=%s", region, projectName, buildId.replace(projectName + ":", ""));
   }
 
+  /**
+   * Returns AWS connection settings (credentials and region) contained in the parameters,
+   * two parameter maps with equal connection settings may share the same AWS clients
+   */
   @NotNull
-  public static List<ProjectInfo> getProjects(@NotNull Map<String, String> params, @NotNull final Collection<String> names) {
-    return AWSCommonParams.withAWSClients(params, new AWSCommonParams.WithAWSClients<List<ProjectInfo>, RuntimeException>() {
-      @Nullable
+  public static Map<String, String> getAWSConnectionParams(@NotNull Map<String, String> params) {
+    final Map<String, String> res = new TreeMap<String, String>();
+    for (Map.Entry<String, String> e : params.entrySet()) {
+      if (e.getKey().startsWith(AWS_PARAMS_PREFIX) || e.getKey().startsWith(SECURE_AWS_PARAMS_PREFIX)) {
+        res.put(e.getKey(), e.getValue());
+      }
+    }
+    return res;
+  }
+
+  @NotNull
+  public static List<ProjectInfo> getProjects(@NotNull final AWSCodeBuild client, @NotNull AWSCallScheduler scheduler, @NotNull final Collection<String> names) {
+    final List<Project> projects = scheduler.call("BatchGetProjects", new AWSCallScheduler.Call<List<Project>>() {
       @Override
-      public List<ProjectInfo> run(@NotNull AWSClients clients) throws RuntimeException {
-        return CollectionsUtil.convertCollection(clients.createCodeBuildClient().batchGetProjects(new BatchGetProjectsRequest().withNames(names)).getProjects(), new Converter<ProjectInfo, Project>() {
-          @Override
-          public ProjectInfo createFrom(@NotNull Project p) {
-            return new ProjectInfo(p.getName(), p.getSource().getType(), p.getSource().getLocation());
-          }
-        });
+      public List<Project> run() {
+        return client.batchGetProjects(new BatchGetProjectsRequest().withNames(names)).getProjects();
+      }
+    });
+    return CollectionsUtil.convertCollection(projects, new Converter<ProjectInfo, Project>() {
+      @Override
+      public ProjectInfo createFrom(@NotNull Project p) {
+        return new ProjectInfo(p.getName(), p.getSource().getType(), p.getSource().getLocation());
       }
     });
   }
 
   @Nullable
-  public static ProjectInfo getProject(@NotNull Map<String, String> params, @NotNull String name) {
-    final List<ProjectInfo> projects = getProjects(params, Collections.singletonList(name));
+  public static ProjectInfo getProject(@NotNull AWSCodeBuild client, @NotNull AWSCallScheduler scheduler, @NotNull String name) {
+    final List<ProjectInfo> projects = getProjects(client, scheduler, Collections.singletonList(name));
     return projects.isEmpty() ? null : projects.get(0);
   }
 
+  /**
+   * Returns the TeamCity build statistic key for the AWS CodeBuild build value, e.g. codebuild.my-project.download_source
+   * for the DOWNLOAD_SOURCE phase duration. The build name includes the environment matrix overrides, if any,
+   * so that the builds of different matrix rows don't overwrite each other's values
+   */
+  @NotNull
+  public static String getStatisticKey(@NotNull String buildName, @NotNull String name) {
+    return String.format(STATISTIC_KEY_FORMAT, buildName, name);
+  }
+
+  @NotNull
+  public static String getPhaseStatisticKey(@NotNull String buildName, @NotNull String phaseType) {
+    return getStatisticKey(buildName, phaseType.toLowerCase(Locale.ENGLISH));
+  }
+
   @Nullable
   public static String getBucketName(@Nullable String location) {
     if (location == null) return null;
@@ -7,6 +7,7 @@ import jetbrains.buildServer.util.amazon.AWSCommonParams;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static jetbrains.buildServer.aws.codebuild.CodeBuildConstants.*;
@@ -25,15 +26,41 @@ public class ParametersValidator {
 
     invalids.putAll(AWSCommonParams.validate(params, acceptReferences));
 
-    final String projectName = getProjectName(params);
-    if (StringUtil.isEmptyOrSpaces(projectName)) {
+    if (getProjectNames(params).isEmpty()) {
       invalids.put(PROJECT_NAME_PARAM, PROJECT_NAME_LABEL + " mustn't be empty");
     }
 
+    for (String row : getEnvironmentMatrixRows(params)) {
+      if (acceptReferences && row.contains("%")) continue;
+      if (parseEnvironmentMatrixRow(row) == null) {
+        invalids.put(ENV_MATRIX_PARAM, ENV_MATRIX_LABEL + ": '" + row + "' must be a list of NAME=value pairs separated by ';'");
+        break;
+      }
+    }
+
+    final String maxConcurrentStarts = params.get(MAX_CONCURRENT_STARTS_PARAM);
+    if (StringUtil.isNotEmpty(maxConcurrentStarts) && !(acceptReferences && maxConcurrentStarts.contains("%"))) {
+      if (getInt(params, MAX_CONCURRENT_STARTS_PARAM, 0) < 1) {
+        invalids.put(MAX_CONCURRENT_STARTS_PARAM, MAX_CONCURRENT_STARTS_LABEL + " must be a positive number");
+      }
+    }
+
+    validatePatterns(getSourceIncludes(params), SOURCE_INCLUDE_PARAM, SOURCE_INCLUDE_LABEL, acceptReferences, invalids);
+    validatePatterns(getSourceExcludes(params), SOURCE_EXCLUDE_PARAM, SOURCE_EXCLUDE_LABEL, acceptReferences, invalids);
+    validatePropertyNamePatterns(getEnvIncludes(params), ENV_INCLUDE_PARAM, ENV_INCLUDE_LABEL, acceptReferences, invalids);
+    validatePropertyNamePatterns(getEnvExcludes(params), ENV_EXCLUDE_PARAM, ENV_EXCLUDE_LABEL, acceptReferences, invalids);
+
     if (isUploadS3Artifacts(params)) {
       if (StringUtil.isEmptyOrSpaces(getArtifactS3Bucket(params))) {
         invalids.put(ARTIFACTS_S3_BUCKET_PARAM, ARTIFACTS_S3_BUCKET_LABEL + " mustn't be empty");
       }
+      if (isDownloadArtifacts(params) && !isWaitStep(params) && !isWaitBuild(params)) {
+        invalids.put(ARTIFACTS_DOWNLOAD_PARAM, ARTIFACTS_DOWNLOAD_LABEL + " requires waiting for the AWS CodeBuild build to finish on the agent");
+      }
+    }
+
+    if (isFailFast(params) && !isWaitStep(params) && !isWaitBuild(params)) {
+      invalids.put(FAIL_FAST_PARAM, FAIL_FAST_LABEL + " requires waiting for the AWS CodeBuild build to finish on the agent");
     }
 
     final String timeoutMinutes = getTimeoutMinutes(params);
@@ -50,6 +77,28 @@ public class ParametersValidator {
 
     return invalids;
   }
+
+  private static void validatePatterns(@NotNull List<String> patterns, @NotNull String param, @NotNull String label, boolean acceptReferences, @NotNull Map<String, String> invalids) {
+    for (String p : patterns) {
+      if (acceptReferences && p.contains("%")) continue;
+      final String reason = SourcePathFilter.validatePattern(p);
+      if (reason != null) {
+        invalids.put(param, label + ": " + reason);
+        return;
+      }
+    }
+  }
+
+  private static void validatePropertyNamePatterns(@NotNull List<String> patterns, @NotNull String param, @NotNull String label, boolean acceptReferences, @NotNull Map<String, String> invalids) {
+    for (String p : patterns) {
+      if (acceptReferences && p.contains("%")) continue;
+      final String reason = validatePropertyNamePattern(p);
+      if (reason != null) {
+        invalids.put(param, label + ": " + reason);
+        return;
+      }
+    }
+  }
 //
 //  private static boolean isReference(@NotNull String param, boolean acceptReference) {
 //    return ReferencesResolverUtil.containsReference(param, new String[]{}, true) && acceptReference;
@@ -0,0 +1,204 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which checkout directory files are packed into the S3 source archive.
+ *
+ * Patterns use the .gitignore syntax: '*' and '?' match within a path segment, '**' matches any number of segments,
+ * a trailing '/' matches directories only, a pattern without '/' matches the name at any depth.
+ * Exclude patterns and ignore file rules are applied to directories too, so excluded directories are not walked at all.
+ * Ignore file rules are applied in order with the last matching rule winning, '!' re-includes previously ignored paths.
+ *
+ * @author vbedrosova
+ */
+public final class SourcePathFilter {
+  public static final String GIT_IGNORE = ".gitignore";
+  public static final String DOCKER_IGNORE = ".dockerignore";
+
+  @NotNull private final List<Rule> myIncludes;
+  @NotNull private final List<Rule> myExcludes;
+  @NotNull private final List<Rule> myIgnoreRules;
+
+  public SourcePathFilter(@NotNull Collection<String> includes, @NotNull Collection<String> excludes) {
+    this(compile("", includes, false), compile("", excludes, false), Collections.<Rule>emptyList());
+  }
+
+  private SourcePathFilter(@NotNull List<Rule> includes, @NotNull List<Rule> excludes, @NotNull List<Rule> ignoreRules) {
+    myIncludes = includes;
+    myExcludes = excludes;
+    myIgnoreRules = ignoreRules;
+  }
+
+  /**
+   * Returns the filter additionally applying the ignore file rules
+   *
+   * @param dir directory of the ignore file relative to the checkout directory, e.g. "" or "src/"
+   * @param anchored whether patterns without '/' match at the directory level only, as in .dockerignore
+   */
+  @NotNull
+  public SourcePathFilter withIgnoreRules(@NotNull String dir, @NotNull Collection<String> lines, boolean anchored) {
+    final List<Rule> rules = compile(dir, lines, anchored);
+    if (rules.isEmpty()) return this;
+
+    final List<Rule> ignoreRules = new ArrayList<Rule>(myIgnoreRules);
+    ignoreRules.addAll(rules);
+    return new SourcePathFilter(myIncludes, myExcludes, ignoreRules);
+  }
+
+  /**
+   * @param path path relative to the checkout directory, '/' separated, without trailing '/'
+   */
+  public boolean isExcluded(@NotNull String path, boolean isDirectory) {
+    for (Rule r : myExcludes) {
+      if (r.matches(path, isDirectory)) return true;
+    }
+    boolean ignored = false;
+    for (Rule r : myIgnoreRules) {
+      if (r.matches(path, isDirectory)) ignored = !r.negated;
+    }
+    return ignored;
+  }
+
+  /**
+   * Returns true if there are no include patterns or the file or one of its parent directories matches any of them
+   */
+  public boolean isIncluded(@NotNull String path) {
+    if (myIncludes.isEmpty()) return true;
+    for (Rule r : myIncludes) {
+      if (r.matches(path, false)) return true;
+      for (int i = path.indexOf('/'); i > 0; i = path.indexOf('/', i + 1)) {
+        if (r.matches(path.substring(0, i), true)) return true;
+      }
+    }
+    return false;
+  }
+
+  public boolean hasIncludes() {
+    return !myIncludes.isEmpty();
+  }
+
+  /**
+   * Splits the parameter value into patterns skipping blank lines and '#' comments
+   */
+  @NotNull
+  public static List<String> parsePatterns(@Nullable String text) {
+    if (text == null) return Collections.emptyList();
+    final List<String> res = new ArrayList<String>();
+    for (String line : text.split("[\r\n]+")) {
+      final String trimmed = line.trim();
+      if (trimmed.isEmpty() || trimmed.startsWith("#")) continue;
+      res.add(trimmed);
+    }
+    return res;
+  }
+
+  /**
+   * Returns the reason the pattern is invalid or null if it's valid
+   */
+  @Nullable
+  public static String validatePattern(@NotNull String pattern) {
+    String p = pattern.startsWith("!") ? pattern.substring(1) : pattern;
+    if (p.contains("\\")) return "'" + pattern + "' must use '/' as a path separator";
+    if (p.endsWith("/")) p = p.substring(0, p.length() - 1);
+    if (p.startsWith("/")) p = p.substring(1);
+    if (p.isEmpty()) return "'" + pattern + "' is empty";
+    for (String segment : p.split("/")) {
+      if (segment.isEmpty() || ".".equals(segment) || "..".equals(segment)) {
+        return "'" + pattern + "' must be relative to the checkout directory";
+      }
+    }
+    int i = 0;
+    while ((i = p.indexOf('[', i)) >= 0) {
+      final int close = p.indexOf(']', i + 2);
+      if (close < 0) return "'" + pattern + "' has unclosed '['";
+      i = close + 1;
+    }
+    return null;
+  }
+
+  @NotNull
+  private static List<Rule> compile(@NotNull String dir, @NotNull Collection<String> patterns, boolean anchored) {
+    final List<Rule> res = new ArrayList<Rule>();
+    for (String p : patterns) {
+      if (validatePattern(p) != null) continue;
+      res.add(Rule.create(dir, p, anchored));
+    }
+    return res;
+  }
+
+  private static final class Rule {
+    @NotNull private final String dir;
+    @NotNull private final Pattern pattern;
+    private final boolean negated;
+    private final boolean directoryOnly;
+
+    private Rule(@NotNull String dir, @NotNull Pattern pattern, boolean negated, boolean directoryOnly) {
+      this.dir = dir;
+      this.pattern = pattern;
+      this.negated = negated;
+      this.directoryOnly = directoryOnly;
+    }
+
+    @NotNull
+    private static Rule create(@NotNull String dir, @NotNull String p, boolean anchored) {
+      final boolean negated = p.startsWith("!");
+      if (negated) p = p.substring(1);
+      final boolean directoryOnly = p.endsWith("/");
+      if (directoryOnly) p = p.substring(0, p.length() - 1);
+      if (!anchored && !p.contains("/")) {
+        p = "**/" + p;
+      } else if (p.startsWith("/")) {
+        p = p.substring(1);
+      }
+      return new Rule(dir, Pattern.compile(toRegex(p)), negated, directoryOnly);
+    }
+
+    private boolean matches(@NotNull String path, boolean isDirectory) {
+      if (directoryOnly && !isDirectory) return false;
+      if (!path.startsWith(dir)) return false;
+      return pattern.matcher(path.substring(dir.length())).matches();
+    }
+
+    @NotNull
+    private static String toRegex(@NotNull String p) {
+      final StringBuilder sb = new StringBuilder();
+      int i = 0;
+      while (i < p.length()) {
+        final char c = p.charAt(i);
+        if (c == '*') {
+          if (p.startsWith("**/", i)) {
+            sb.append("(?:.*/)?");
+            i += 3;
+          } else if (p.startsWith("**", i)) {
+            sb.append(".*");
+            i += 2;
+          } else {
+            sb.append("[^/]*");
+            ++i;
+          }
+        } else if (c == '?') {
+          sb.append("[^/]");
+          ++i;
+        } else if (c == '[') {
+          final int close = p.indexOf(']', i + 2);
+          String set = p.substring(i + 1, close);
+          if (set.startsWith("!")) set = "^" + set.substring(1);
+          sb.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+          i = close + 1;
+        } else {
+          sb.append(Pattern.quote(String.valueOf(c)));
+          ++i;
+        }
+      }
+      return sb.toString();
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import org.jetbrains.annotations.NotNull;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.testng.Assert.*;
+
+/**
+ * @author vbedrosova
+ */
+@Test
+public class SourcePathFilterTest {
+
+  public void pattern_without_slash_matches_at_any_depth() {
+    final SourcePathFilter filter = excludes("*.log");
+    assertTrue(filter.isExcluded("a.log", false));
+    assertTrue(filter.isExcluded("dir/sub/b.log", false));
+    assertFalse(filter.isExcluded("a.txt", false));
+    assertFalse(filter.isExcluded("a.log.txt", false));
+  }
+
+  public void leading_slash_anchors_to_root() {
+    final SourcePathFilter filter = excludes("/build");
+    assertTrue(filter.isExcluded("build", true));
+    assertFalse(filter.isExcluded("src/build", true));
+  }
+
+  public void pattern_with_slash_is_relative_to_root() {
+    final SourcePathFilter filter = excludes("docs/*.md");
+    assertTrue(filter.isExcluded("docs/a.md", false));
+    assertFalse(filter.isExcluded("docs/sub/a.md", false));
+    assertFalse(filter.isExcluded("other/docs/a.md", false));
+  }
+
+  public void double_star_matches_any_number_of_segments() {
+    final SourcePathFilter filter = excludes("a/**/b", "**/tmp/**");
+    assertTrue(filter.isExcluded("a/b", false));
+    assertTrue(filter.isExcluded("a/x/y/b", false));
+    assertFalse(filter.isExcluded("c/a/b", false));
+    assertTrue(filter.isExcluded("tmp/file", false));
+    assertTrue(filter.isExcluded("x/y/tmp/z/file", false));
+    assertFalse(filter.isExcluded("tmp", true));
+  }
+
+  public void single_star_and_question_mark_stay_within_segment() {
+    final SourcePathFilter filter = excludes("/src/*.java", "/file?.txt");
+    assertTrue(filter.isExcluded("src/A.java", false));
+    assertFalse(filter.isExcluded("src/a/A.java", false));
+    assertTrue(filter.isExcluded("file1.txt", false));
+    assertFalse(filter.isExcluded("file12.txt", false));
+    assertFalse(filter.isExcluded("file/.txt", false));
+  }
+
+  public void character_classes() {
+    final SourcePathFilter filter = excludes("/file[0-9].txt", "/[!a]b");
+    assertTrue(filter.isExcluded("file1.txt", false));
+    assertFalse(filter.isExcluded("filea.txt", false));
+    assertTrue(filter.isExcluded("cb", false));
+    assertFalse(filter.isExcluded("ab", false));
+  }
+
+  public void trailing_slash_matches_directories_only() {
+    final SourcePathFilter filter = excludes("out/");
+    assertTrue(filter.isExcluded("out", true));
+    assertTrue(filter.isExcluded("module/out", true));
+    assertFalse(filter.isExcluded("out", false));
+  }
+
+  public void last_matching_ignore_rule_wins() {
+    final SourcePathFilter filter = none().withIgnoreRules("", Arrays.asList("*.log", "!keep.log"), false);
+    assertTrue(filter.isExcluded("a.log", false));
+    assertFalse(filter.isExcluded("keep.log", false));
+    assertFalse(filter.isExcluded("sub/keep.log", false));
+
+    final SourcePathFilter reversed = none().withIgnoreRules("", Arrays.asList("!keep.log", "*.log"), false);
+    assertTrue(reversed.isExcluded("keep.log", false));
+  }
+
+  public void negation_does_not_override_exclude_patterns() {
+    final SourcePathFilter filter = excludes("*.log").withIgnoreRules("", Collections.singletonList("!keep.log"), false);
+    assertTrue(filter.isExcluded("keep.log", false));
+  }
+
+  public void nested_ignore_rules_apply_below_their_directory() {
+    final SourcePathFilter filter = none().withIgnoreRules("src/", Arrays.asList("*.tmp", "/generated"), false);
+    assertTrue(filter.isExcluded("src/a.tmp", false));
+    assertTrue(filter.isExcluded("src/x/a.tmp", false));
+    assertFalse(filter.isExcluded("a.tmp", false));
+    assertTrue(filter.isExcluded("src/generated", true));
+    assertFalse(filter.isExcluded("src/x/generated", true));
+    assertFalse(filter.isExcluded("generated", true));
+  }
+
+  public void anchored_rules_match_at_their_directory_level_only() {
+    final SourcePathFilter filter = none().withIgnoreRules("", Collections.singletonList("*.md"), true);
+    assertTrue(filter.isExcluded("README.md", false));
+    assertFalse(filter.isExcluded("docs/a.md", false));
+  }
+
+  public void file_is_included_when_it_or_parent_directory_matches() {
+    final SourcePathFilter filter = new SourcePathFilter(Arrays.asList("src/", "/pom.xml"), Collections.<String>emptyList());
+    assertTrue(filter.hasIncludes());
+    assertTrue(filter.isIncluded("src/a/B.java"));
+    assertTrue(filter.isIncluded("module/src/B.java"));
+    assertTrue(filter.isIncluded("pom.xml"));
+    assertFalse(filter.isIncluded("module/pom.xml"));
+    assertFalse(filter.isIncluded("test/B.java"));
+    assertFalse(filter.isIncluded("src"));
+  }
+
+  public void everything_is_included_without_include_patterns() {
+    final SourcePathFilter filter = none();
+    assertFalse(filter.hasIncludes());
+    assertTrue(filter.isIncluded("any/file"));
+    assertFalse(filter.isExcluded("any/file", false));
+  }
+
+  public void invalid_patterns_are_skipped() {
+    final SourcePathFilter filter = excludes("../x", "[abc", "*.log");
+    assertTrue(filter.isExcluded("a.log", false));
+    assertFalse(filter.isExcluded("x", false));
+  }
+
+  public void parse_patterns() {
+    assertEquals(SourcePathFilter.parsePatterns(" *.log \n\n# comment\r\n!keep.log\n"), Arrays.asList("*.log", "!keep.log"));
+    assertTrue(SourcePathFilter.parsePatterns(null).isEmpty());
+  }
+
+  public void validate_pattern() {
+    assertNull(SourcePathFilter.validatePattern("src/**/*.java"));
+    assertNull(SourcePathFilter.validatePattern("!/build/"));
+    assertNull(SourcePathFilter.validatePattern("file[!0-9]"));
+    assertNotNull(SourcePathFilter.validatePattern("a/../b"));
+    assertNotNull(SourcePathFilter.validatePattern("./a"));
+    assertNotNull(SourcePathFilter.validatePattern("a//b"));
+    assertNotNull(SourcePathFilter.validatePattern("a\\b"));
+    assertNotNull(SourcePathFilter.validatePattern("[abc"));
+    assertNotNull(SourcePathFilter.validatePattern("!"));
+    assertNotNull(SourcePathFilter.validatePattern("/"));
+  }
+
+  @NotNull
+  private static SourcePathFilter excludes(@NotNull String... patterns) {
+    return new SourcePathFilter(Collections.<String>emptyList(), Arrays.asList(patterns));
+  }
+
+  @NotNull
+  private static SourcePathFilter none() {
+    return excludes();
+  }
+}
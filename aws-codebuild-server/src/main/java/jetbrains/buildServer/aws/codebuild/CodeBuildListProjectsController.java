@@ -2,11 +2,6 @@
 
 package jetbrains.buildServer.aws.codebuild;
 
-import com.amazonaws.services.codebuild.AWSCodeBuildClient;
-import com.amazonaws.services.codebuild.model.ListProjectsRequest;
-import com.amazonaws.services.codebuild.model.ListProjectsResult;
-import com.amazonaws.services.codebuild.model.ProjectSortByType;
-import com.amazonaws.services.codebuild.model.SortOrderType;
 import jetbrains.buildServer.controllers.BaseController;
 import jetbrains.buildServer.controllers.BasePropertiesBean;
 import jetbrains.buildServer.controllers.admin.projects.PluginPropertiesUtil;
@@ -21,17 +16,22 @@ import org.springframework.web.servlet.ModelAndView;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.util.*;
+import java.util.stream.Collectors;
 
 /**
  * @author vbedrosova
  */
 public class CodeBuildListProjectsController extends BaseController {
+  private static final int PAGE_SIZE = 50;
 
   @NotNull
   private final PluginDescriptor myPluginDescriptor;
+  @NotNull
+  private final CodeBuildProjectsCache myProjectsCache;
 
-  public CodeBuildListProjectsController(@NotNull WebControllerManager controllerManager, @NotNull PluginDescriptor pluginDescriptor) {
+  public CodeBuildListProjectsController(@NotNull WebControllerManager controllerManager, @NotNull PluginDescriptor pluginDescriptor, @NotNull CodeBuildProjectsCache projectsCache) {
     myPluginDescriptor = pluginDescriptor;
+    myProjectsCache = projectsCache;
     controllerManager.registerController(myPluginDescriptor.getPluginResourcesPath("listProjects.html"), this);
   }
 
@@ -43,30 +43,45 @@ public class CodeBuildListProjectsController extends BaseController {
     if (invalids.isEmpty()) {
       final Map<String, Object> model = new HashMap<>();
       try {
-        model.put("projects", getProjects(params));
+        final CodeBuildProjectsCache.Projects projects = myProjectsCache.getProjects(params, Boolean.parseBoolean(request.getParameter("refresh")));
+        final String filter = StringUtil.emptyIfNull(request.getParameter("filter")).trim();
+        final List<CodeBuildUtil.ProjectInfo> matching = filter(projects.getProjects(), filter);
+        final int pages = Math.max(1, (matching.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+        final int page = Math.min(pages - 1, Math.max(0, getInt(request.getParameter("page"))));
+
+        model.put("projects", matching.subList(page * PAGE_SIZE, Math.min(matching.size(), (page + 1) * PAGE_SIZE)));
+        model.put("totalCount", matching.size());
+        model.put("firstIndex", page * PAGE_SIZE);
+        model.put("pageIndex", page);
+        model.put("hasPrevious", page > 0);
+        model.put("hasNext", page + 1 < pages);
+        model.put("filter", filter);
+        model.put("loadTime", projects.getLoadTime());
+        model.put("refreshing", projects.isRefreshing());
       } catch (Throwable e) {
         return handle("errors.jsp", Collections.<String, Object>singletonMap("invalids", Collections.singletonMap(CodeBuildConstants.PROJECT_NAME_PARAM, e.getMessage())));
       }
-      return handle("projects.jsp", model);
+      return handle(Boolean.parseBoolean(request.getParameter("fragment")) ? "projectsPage.jsp" : "projects.jsp", model);
     } else {
       return handle("errors.jsp", Collections.<String, Object>singletonMap("invalids", invalids)); // escaped in the jsp
     }
   }
 
+  /**
+   * Returns the projects with names starting with the filter ignoring case
+   */
   @NotNull
-  private List<CodeBuildUtil.ProjectInfo> getProjects(@NotNull Map<String, String> params) {
-    return AWSCommonParams.withAWSClients(params, clients -> {
-      final AWSCodeBuildClient client = clients.createCodeBuildClient();
-      final List<CodeBuildUtil.ProjectInfo> res = new ArrayList<>();
-      String nextToken = null;
-      do {
-        final ListProjectsResult result = client.listProjects(new ListProjectsRequest().withSortBy(ProjectSortByType.LAST_MODIFIED_TIME).withSortOrder(SortOrderType.DESCENDING)).withNextToken(nextToken);
-        if (result.getProjects().isEmpty()) break;
-        res.addAll(CodeBuildUtil.getProjects(params, result.getProjects()));
-        nextToken = result.getNextToken();
-      } while (StringUtil.isNotEmpty(nextToken));
-      return res;
-    });
+  private static List<CodeBuildUtil.ProjectInfo> filter(@NotNull List<CodeBuildUtil.ProjectInfo> projects, @NotNull String filter) {
+    if (filter.isEmpty()) return projects;
+    return projects.stream().filter(p -> p.getName().regionMatches(true, 0, filter, 0, filter.length())).collect(Collectors.toList());
+  }
+
+  private static int getInt(@Nullable String value) {
+    try {
+      return value == null ? 0 : Integer.parseInt(value);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
   }
 
   @NotNull
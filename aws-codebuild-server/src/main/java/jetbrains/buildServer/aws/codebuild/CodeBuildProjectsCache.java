@@ -0,0 +1,208 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.AWSCodeBuild;
+import com.amazonaws.services.codebuild.model.ListProjectsRequest;
+import com.amazonaws.services.codebuild.model.ListProjectsResult;
+import com.amazonaws.services.codebuild.model.ProjectSortByType;
+import com.amazonaws.services.codebuild.model.SortOrderType;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps AWS CodeBuild projects lists per AWS connection settings for the project name suggestions.
+ *
+ * A list older than %teamcity.codebuild.projects.cache.ttl.seconds% is returned as is while the new list is loaded in the background,
+ * only the first request for the connection settings and the explicit refresh wait for the AWS calls.
+ *
+ * @author vbedrosova
+ */
+public class CodeBuildProjectsCache {
+  private static final Logger LOG = Logger.getInstance(CodeBuildProjectsCache.class.getName());
+  private static final long IDLE_TTL = TimeUnit.HOURS.toMillis(1);
+  private static final int MAX_BATCH_GET_PROJECTS = 100;
+  private static final int MAX_CONCURRENT_BATCH_GET_PROJECTS = 4;
+
+  @NotNull
+  private final AWSClientsCache myClientsCache;
+  @NotNull
+  private final ExecutorService myExecutor = Executors.newFixedThreadPool(2, new NamedThreadFactory("AWS CodeBuild projects cache"));
+  @NotNull
+  private final ExecutorService myBatchExecutor = Executors.newFixedThreadPool(MAX_CONCURRENT_BATCH_GET_PROJECTS, new NamedThreadFactory("AWS CodeBuild projects loader"));
+  @NotNull
+  private final Map<Map<String, String>, Entry> myEntries = new HashMap<>();
+
+  public CodeBuildProjectsCache(@NotNull AWSClientsCache clientsCache) {
+    myClientsCache = clientsCache;
+  }
+
+  /**
+   * @param refresh whether to wait for the up-to-date list
+   */
+  @NotNull
+  public Projects getProjects(@NotNull Map<String, String> params, boolean refresh) throws Exception {
+    final Future<List<CodeBuildUtil.ProjectInfo>> loading;
+    final Projects cached;
+    synchronized (this) {
+      final long now = System.currentTimeMillis();
+      evictIdle(now);
+
+      final Map<String, String> key = CodeBuildUtil.getAWSConnectionParams(params);
+      Entry entry = myEntries.get(key);
+      if (entry == null) {
+        entry = new Entry();
+        myEntries.put(key, entry);
+      }
+      entry.lastAccessTime = now;
+
+      if (entry.refresh == null && (refresh || entry.projects == null || now - entry.loadTime > getTTL())) {
+        entry.refresh = myExecutor.submit(newLoadTask(params, entry));
+      }
+      if (refresh || entry.projects == null) {
+        loading = entry.refresh;
+        cached = null;
+      } else {
+        loading = null;
+        cached = new Projects(entry.projects, entry.loadTime, entry.refresh != null);
+      }
+    }
+
+    if (cached != null) return cached;
+    try {
+      final List<CodeBuildUtil.ProjectInfo> projects = loading.get();
+      return new Projects(projects, System.currentTimeMillis(), false);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      throw cause instanceof Exception ? (Exception) cause : e;
+    }
+  }
+
+  public void dispose() {
+    myExecutor.shutdownNow();
+    myBatchExecutor.shutdownNow();
+    synchronized (this) {
+      myEntries.clear();
+    }
+  }
+
+  @NotNull
+  private Callable<List<CodeBuildUtil.ProjectInfo>> newLoadTask(@NotNull Map<String, String> params, @NotNull Entry entry) {
+    final Map<String, String> connectionParams = CodeBuildUtil.getAWSConnectionParams(params);
+    return () -> {
+      try {
+        final List<CodeBuildUtil.ProjectInfo> projects = Collections.unmodifiableList(loadProjects(connectionParams));
+        synchronized (CodeBuildProjectsCache.this) {
+          entry.projects = projects;
+          entry.loadTime = System.currentTimeMillis();
+        }
+        return projects;
+      } catch (Exception e) {
+        LOG.warnAndDebugDetails("Failed to load AWS CodeBuild projects", e);
+        throw e;
+      } finally {
+        synchronized (CodeBuildProjectsCache.this) {
+          entry.refresh = null;
+        }
+      }
+    };
+  }
+
+  /**
+   * Pages through the project names and loads each page details concurrently in chunks of {@link #MAX_BATCH_GET_PROJECTS}
+   * keeping the names order
+   */
+  @NotNull
+  private List<CodeBuildUtil.ProjectInfo> loadProjects(@NotNull Map<String, String> params) throws Exception {
+    final AWSClientsCache.Lease lease = myClientsCache.acquire(params);
+    try {
+      return loadProjects(lease.getCodeBuildClient());
+    } finally {
+      lease.close();
+    }
+  }
+
+  @NotNull
+  private List<CodeBuildUtil.ProjectInfo> loadProjects(@NotNull AWSCodeBuild client) throws Exception {
+    final AWSCallScheduler scheduler = myClientsCache.getCallScheduler();
+    final List<Future<List<CodeBuildUtil.ProjectInfo>>> chunks = new ArrayList<>();
+    try {
+      String nextToken = null;
+      do {
+        final ListProjectsRequest request = new ListProjectsRequest().withSortBy(ProjectSortByType.LAST_MODIFIED_TIME).withSortOrder(SortOrderType.DESCENDING).withNextToken(nextToken);
+        final ListProjectsResult result = scheduler.call("ListProjects", () -> client.listProjects(request));
+        final List<String> names = result.getProjects();
+        for (int i = 0; i < names.size(); i += MAX_BATCH_GET_PROJECTS) {
+          final List<String> chunk = new ArrayList<>(names.subList(i, Math.min(i + MAX_BATCH_GET_PROJECTS, names.size())));
+          chunks.add(myBatchExecutor.submit(() -> CodeBuildUtil.getProjects(client, scheduler, chunk)));
+        }
+        nextToken = result.getNextToken();
+      } while (StringUtil.isNotEmpty(nextToken));
+
+      final List<CodeBuildUtil.ProjectInfo> res = new ArrayList<>();
+      for (Future<List<CodeBuildUtil.ProjectInfo>> f : chunks) {
+        try {
+          res.addAll(f.get());
+        } catch (ExecutionException e) {
+          final Throwable cause = e.getCause();
+          throw cause instanceof Exception ? (Exception) cause : e;
+        }
+      }
+      return res;
+    } finally {
+      for (Future<List<CodeBuildUtil.ProjectInfo>> f : chunks) {
+        f.cancel(true);
+      }
+    }
+  }
+
+  private void evictIdle(long now) {
+    myEntries.values().removeIf(e -> e.refresh == null && now - e.lastAccessTime > IDLE_TTL);
+  }
+
+  private static long getTTL() {
+    return TimeUnit.SECONDS.toMillis(TeamCityProperties.getLong(CodeBuildConstants.PROJECTS_CACHE_TTL_SERVER_PROPERTY, CodeBuildConstants.DEFAULT_PROJECTS_CACHE_TTL_SECONDS));
+  }
+
+  public static final class Projects {
+    @NotNull
+    private final List<CodeBuildUtil.ProjectInfo> myProjects;
+    private final long myLoadTime;
+    private final boolean myRefreshing;
+
+    private Projects(@NotNull List<CodeBuildUtil.ProjectInfo> projects, long loadTime, boolean refreshing) {
+      myProjects = projects;
+      myLoadTime = loadTime;
+      myRefreshing = refreshing;
+    }
+
+    @NotNull
+    public List<CodeBuildUtil.ProjectInfo> getProjects() {
+      return myProjects;
+    }
+
+    @NotNull
+    public Date getLoadTime() {
+      return new Date(myLoadTime);
+    }
+
+    /**
+     * Whether the list is being reloaded in the background
+     */
+    public boolean isRefreshing() {
+      return myRefreshing;
+    }
+  }
+
+  private static final class Entry {
+    @Nullable private List<CodeBuildUtil.ProjectInfo> projects;
+    private long loadTime;
+    private long lastAccessTime;
+    @Nullable private Future<List<CodeBuildUtil.ProjectInfo>> refresh;
+  }
+}
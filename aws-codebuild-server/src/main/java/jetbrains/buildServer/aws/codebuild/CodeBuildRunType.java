@@ -13,6 +13,7 @@ import org.jetbrains.annotations.Nullable;
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -44,7 +45,11 @@ public class CodeBuildRunType extends RunType {
     return new PropertiesProcessor() {
       @Override
       public Collection<InvalidProperty> process(Map<String, String> properties) {
-        return CollectionsUtil.convertCollection(ParametersValidator.validateSettings(properties, true).entrySet(), new Converter<InvalidProperty, Map.Entry<String, String>>() {
+        final Map<String, String> invalids = ParametersValidator.validateSettings(properties, true);
+        if (CodeBuildUtil.isWaitServer(properties) && !CodeBuildServerTracker.isSupported()) {
+          invalids.put(CodeBuildConstants.WAIT_PARAM, CodeBuildConstants.WAIT_SERVER_LABEL + " requires TeamCity 2020.1 or newer");
+        }
+        return CollectionsUtil.convertCollection(invalids.entrySet(), new Converter<InvalidProperty, Map.Entry<String, String>>() {
           @Override
           public InvalidProperty createFrom(@NotNull Map.Entry<String, String> source) {
             return new InvalidProperty(source.getKey(), source.getValue());
@@ -93,7 +98,8 @@ public class CodeBuildRunType extends RunType {
     final Map<String, String> invalids = ParametersValidator.validateSettings(parameters, true);
     if (invalids.isEmpty()) {
       final StringBuilder descr = new StringBuilder("Run AWS CodeBuild in ");
-      descr.append(CodeBuildUtil.getProjectName(parameters)).append(" project");
+      final List<String> projectNames = CodeBuildUtil.getProjectNames(parameters);
+      descr.append(StringUtil.join(projectNames, ", ")).append(projectNames.size() > 1 ? " projects" : " project");
 
       final String sourceVersion = CodeBuildUtil.getSourceVersion(parameters);
       if (StringUtil.isNotEmpty(sourceVersion)) {
@@ -102,6 +108,11 @@ public class CodeBuildRunType extends RunType {
         descr.append(" with the latest source version");
       }
 
+      final List<Map<String, String>> matrix = CodeBuildUtil.getEnvironmentMatrix(parameters);
+      if (matrix.size() > 1) {
+        descr.append(" for ").append(matrix.size()).append(" environment combinations");
+      }
+
       return descr.toString();
     } else {
       return StringUtil.join(invalids.values(), ", ");
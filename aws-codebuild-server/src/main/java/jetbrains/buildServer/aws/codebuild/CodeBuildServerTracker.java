@@ -0,0 +1,451 @@
+package jetbrains.buildServer.aws.codebuild;
+
+import com.amazonaws.services.codebuild.AWSCodeBuild;
+import com.amazonaws.services.codebuild.model.BatchGetBuildsRequest;
+import com.amazonaws.services.codebuild.model.BatchGetBuildsResult;
+import com.amazonaws.services.codebuild.model.Build;
+import com.amazonaws.services.codebuild.model.BuildPhase;
+import com.amazonaws.services.codebuild.model.PhaseContext;
+import com.amazonaws.services.codebuild.model.StopBuildRequest;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.BuildProblemData;
+import jetbrains.buildServer.messages.BuildMessage1;
+import jetbrains.buildServer.messages.DefaultMessagesInfo;
+import jetbrains.buildServer.messages.Status;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
+import jetbrains.buildServer.parameters.ValueResolver;
+import jetbrains.buildServer.serverSide.*;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.NamedThreadFactory;
+import jetbrains.buildServer.util.StringUtil;
+import jetbrains.buildServer.util.amazon.AWSCommonParams;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Waits on the server for the AWS CodeBuild builds started by the steps in the {@link CodeBuildConstants#WAIT_SERVER} mode,
+ * so that no agent is held while the builds run. The agent detaches only if the server reports the mode supported
+ * with the {@link CodeBuildConstants#SERVER_WAIT_SUPPORTED_CONFIG_PARAM} build parameter.
+ *
+ * The agent reports the started builds with the {@link CodeBuildConstants#TRACK_SERVICE_MESSAGE} and detaches from the TeamCity build.
+ * A single tick every %teamcity.codebuild.tracker.poll.interval.seconds% requests statuses of all the tracked builds
+ * with BatchGetBuilds calls per AWS connection settings, whichever TeamCity builds and projects they belong to. When all the
+ * builds of a TeamCity build are finished, the TeamCity build is finished with a build problem per failed build.
+ * If {@link #MAX_POLL_FAILURES} polls of the builds fail in a row, the TeamCity build is failed and the builds aren't tracked anymore.
+ * After the server restart the tracking is resumed from the build ids reported as the detached builds parameters.
+ *
+ * Builds detached from the agent are supported since TeamCity 2020.1. The plugin is built against an older API,
+ * so the methods are looked up at runtime and the mode is rejected, see {@link #isSupported()}, on older servers.
+ * If the server fails to finish the detached build, the build is stopped so that it doesn't run forever.
+ *
+ * @author vbedrosova
+ */
+public class CodeBuildServerTracker extends BuildServerAdapter implements ServiceMessageTranslator, BuildStartContextProcessor {
+  private static final Logger LOG = Logger.getInstance(CodeBuildServerTracker.class.getName());
+  private static final int MAX_BATCH_SIZE = 100;
+  private static final int STOP_BUILD_MAX_RETRIES = 3;
+  private static final int MAX_CONCURRENT_STOPS = 10;
+  static final int MAX_POLL_FAILURES = 5; // each poll is already retried by AWSCallScheduler
+  @Nullable
+  private static final Method IS_DETACHED_FROM_AGENT = findMethod(SRunningBuild.class, "isDetachedFromAgent");
+  @Nullable
+  private static final Method FINISH = findMethod(RunningBuildEx.class, "finish", Date.class);
+
+  @NotNull
+  private final SBuildServer myServer;
+  @NotNull
+  private final AWSClientsCache myClientsCache;
+  @NotNull
+  private final ScheduledExecutorService myExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("AWS CodeBuild server tracker"));
+  @NotNull
+  private final ThreadPoolExecutor myStopExecutor = new ThreadPoolExecutor(MAX_CONCURRENT_STOPS, MAX_CONCURRENT_STOPS, 60, TimeUnit.SECONDS,
+                                                                           new LinkedBlockingQueue<>(), new NamedThreadFactory("AWS CodeBuild builds stopper"));
+  @NotNull
+  private final Map<Long, Tracked> myTracked = new HashMap<>(); // by TeamCity build id
+  private boolean myTickScheduled; // guarded by the tracker, so that a single tick chain runs
+
+  public CodeBuildServerTracker(@NotNull SBuildServer server,
+                                @NotNull EventDispatcher<BuildServerListener> events,
+                                @NotNull AWSClientsCache clientsCache) {
+    myServer = server;
+    myClientsCache = clientsCache;
+    myStopExecutor.allowCoreThreadTimeOut(true);
+    if (isSupported()) {
+      server.registerExtension(ServiceMessageTranslator.class, getClass().getName(), this);
+      server.registerExtension(BuildStartContextProcessor.class, getClass().getName(), this);
+      events.addListener(this);
+    } else {
+      LOG.info("Builds detached from the agent are not supported by the server, the AWS CodeBuild " + CodeBuildConstants.WAIT_SERVER_LABEL + " mode is disabled");
+    }
+  }
+
+  /**
+   * Returns true if the server is able to detach the builds from the agent and finish them, since TeamCity 2020.1
+   */
+  public static boolean isSupported() {
+    return IS_DETACHED_FROM_AGENT != null && FINISH != null;
+  }
+
+  @NotNull
+  @Override
+  public String getServiceMessageName() {
+    return CodeBuildConstants.TRACK_SERVICE_MESSAGE;
+  }
+
+  @NotNull
+  @Override
+  public List<BuildMessage1> translate(@NotNull SRunningBuild build, @NotNull BuildMessage1 originalMessage, @NotNull ServiceMessage serviceMessage) {
+    final String stepId = serviceMessage.getAttributes().get(CodeBuildConstants.TRACK_STEP_ID_ATTRIBUTE);
+    final String buildIds = serviceMessage.getAttributes().get(CodeBuildConstants.TRACK_BUILD_IDS_ATTRIBUTE);
+    if (StringUtil.isEmpty(stepId) || StringUtil.isEmpty(buildIds)) {
+      return Collections.singletonList(DefaultMessagesInfo.createTextMessage("Malformed " + CodeBuildConstants.TRACK_SERVICE_MESSAGE + " service message: " + serviceMessage.asString(), Status.WARNING));
+    }
+
+    final Map<String, String> params = getRunnerParameters(build, stepId);
+    if (params == null) {
+      return Collections.singletonList(DefaultMessagesInfo.createTextMessage("No AWS CodeBuild step with id " + stepId + " found, AWS CodeBuild builds " + buildIds + " are not tracked", Status.ERROR));
+    }
+
+    final List<String> ids = Arrays.asList(buildIds.split(","));
+    track(build.getBuildId(), params, ids);
+    return Collections.singletonList(DefaultMessagesInfo.createTextMessage("Waiting for " + ids.size() + " AWS CodeBuild " + (ids.size() > 1 ? "builds" : "build") + " on the server"));
+  }
+
+  @Override
+  public void updateParameters(@NotNull BuildStartContext context) {
+    context.addSharedParameter(CodeBuildConstants.SERVER_WAIT_SUPPORTED_CONFIG_PARAM, "true");
+  }
+
+  @Override
+  public void serverStartup() {
+    for (SRunningBuild build : myServer.getRunningBuilds()) {
+      if (!isDetachedFromAgent(build)) continue;
+      for (SBuildRunnerDescriptor runner : build.getBuildPromotion().getBuildSettings().getBuildRunners()) {
+        if (!CodeBuildConstants.RUNNER_TYPE.equals(runner.getType()) || !CodeBuildUtil.isWaitServer(runner.getParameters())) continue;
+
+        final String buildIds = build.getParametersProvider().get("system." + String.format(CodeBuildConstants.BUILD_ID_SYSTEM_PROPERTY_FORMAT, runner.getId()));
+        if (StringUtil.isNotEmpty(buildIds)) {
+          track(build.getBuildId(), resolve(build, runner.getParameters()), Arrays.asList(buildIds.split(",")));
+        }
+      }
+    }
+  }
+
+  @Override
+  public void serverShutdown() {
+    dispose();
+  }
+
+  @Override
+  public void buildInterrupted(@NotNull SRunningBuild build) {
+    final Tracked t;
+    final List<String> pending;
+    synchronized (this) {
+      t = myTracked.remove(build.getBuildId());
+      if (t == null) return;
+      pending = new ArrayList<>(t.pending);
+    }
+
+    // the StopBuild calls are retried with backoff, they mustn't hold the events dispatching thread
+    final long buildId = build.getBuildId();
+    for (String id : pending) {
+      try {
+        myStopExecutor.execute(() -> stop(t.params, id, buildId));
+      } catch (RejectedExecutionException ignored) {
+        // disposed
+      }
+    }
+  }
+
+  public void dispose() {
+    myExecutor.shutdownNow();
+    myStopExecutor.shutdownNow();
+    synchronized (this) {
+      myTracked.clear();
+    }
+  }
+
+  private void stop(@NotNull Map<String, String> params, @NotNull String id, long buildId) {
+    final AWSClientsCache.Lease lease = myClientsCache.acquire(params);
+    try {
+      final AWSCodeBuild client = lease.getCodeBuildClient();
+      myClientsCache.getCallScheduler().call("StopBuild", STOP_BUILD_MAX_RETRIES, () -> client.stopBuild(new StopBuildRequest().withId(id)));
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Failed to stop AWS CodeBuild build " + id + " of the interrupted build " + buildId, e);
+    } finally {
+      lease.close();
+    }
+  }
+
+  private void track(long buildId, @NotNull Map<String, String> params, @NotNull Collection<String> ids) {
+    synchronized (this) {
+      myTracked.put(buildId, new Tracked(buildId, params, ids));
+      if (myTickScheduled) return;
+      myTickScheduled = true;
+    }
+    scheduleTick();
+  }
+
+  private void scheduleTick() {
+    try {
+      myExecutor.schedule(this::tick, TeamCityProperties.getLong(CodeBuildConstants.SERVER_POLL_INTERVAL_SERVER_PROPERTY, CodeBuildConstants.DEFAULT_SERVER_POLL_INTERVAL_SECONDS), TimeUnit.SECONDS);
+    } catch (RejectedExecutionException ignored) {
+      // disposed
+    }
+  }
+
+  private void tick() {
+    final Map<Map<String, String>, Map<String, Tracked>> byConnection = new LinkedHashMap<>();
+    synchronized (this) {
+      for (Tracked t : myTracked.values()) {
+        final Map<String, Tracked> group = byConnection.computeIfAbsent(CodeBuildUtil.getAWSConnectionParams(t.params), k -> new LinkedHashMap<>());
+        for (String id : t.pending) {
+          group.put(id, t);
+        }
+      }
+    }
+
+    for (Map<String, Tracked> group : byConnection.values()) {
+      try {
+        poll(group);
+        pollSucceeded(group.values());
+      } catch (Exception e) {
+        LOG.warnAndDebugDetails("Failed to get AWS CodeBuild builds status", e);
+        pollFailed(group.values(), e);
+      }
+    }
+
+    synchronized (this) {
+      if (myTracked.isEmpty()) {
+        myTickScheduled = false;
+        return;
+      }
+    }
+    scheduleTick();
+  }
+
+  private void poll(@NotNull Map<String, Tracked> group) {
+    final AWSClientsCache.Lease lease = myClientsCache.acquire(group.values().iterator().next().params);
+    try {
+      poll(group, lease.getCodeBuildClient());
+    } finally {
+      lease.close();
+    }
+  }
+
+  private void poll(@NotNull Map<String, Tracked> group, @NotNull AWSCodeBuild client) {
+    final AWSCallScheduler scheduler = myClientsCache.getCallScheduler();
+
+    final List<String> ids = new ArrayList<>(group.keySet());
+    for (int from = 0; from < ids.size(); from += MAX_BATCH_SIZE) {
+      final List<String> batch = ids.subList(from, Math.min(ids.size(), from + MAX_BATCH_SIZE));
+      final BatchGetBuildsResult result = scheduler.call("BatchGetBuilds", () -> client.batchGetBuilds(new BatchGetBuildsRequest().withIds(batch)));
+      for (Build b : result.getBuilds()) {
+        final Tracked t = group.get(b.getId());
+        if (t != null && Boolean.TRUE.equals(b.getBuildComplete())) {
+          finished(t, b.getId(), b);
+        }
+      }
+      for (String id : result.getBuildsNotFound()) {
+        final Tracked t = group.get(id);
+        if (t != null) finished(t, id, null);
+      }
+    }
+  }
+
+  private synchronized void pollSucceeded(@NotNull Collection<Tracked> group) {
+    for (Tracked t : group) {
+      t.pollFailures = 0;
+    }
+  }
+
+  private void pollFailed(@NotNull Collection<Tracked> group, @NotNull Exception e) {
+    final List<Tracked> failed = new ArrayList<>();
+    synchronized (this) {
+      for (Tracked t : new LinkedHashSet<>(group)) {
+        // the builds of the TeamCity build are polled once per tick, all of them in the same group
+        if (myTracked.get(t.buildId) == t && ++t.pollFailures >= MAX_POLL_FAILURES) {
+          myTracked.remove(t.buildId);
+          failed.add(t);
+        }
+      }
+    }
+
+    for (Tracked t : failed) {
+      final SRunningBuild build = myServer.findRunningBuildById(t.buildId);
+      if (build == null) continue;
+
+      final String description = "Failed to get AWS CodeBuild builds status " + MAX_POLL_FAILURES + " times in a row: " + e.getMessage();
+      build.addBuildMessages(Collections.singletonList(DefaultMessagesInfo.createTextMessage(description + ", AWS CodeBuild builds " + StringUtil.join(t.pending, ", ") + " are not tracked anymore", Status.ERROR)));
+      addProblem(build, t, StringUtil.join(t.pending, ","), description);
+      finish(build, t);
+    }
+  }
+
+  private void finished(@NotNull Tracked t, @NotNull String codeBuildBuildId, @Nullable Build codeBuildBuild) {
+    final boolean allFinished;
+    synchronized (this) {
+      // the build may be already reported, or not tracked anymore after the interruption
+      if (myTracked.get(t.buildId) != t || !t.pending.remove(codeBuildBuildId)) return;
+      allFinished = t.pending.isEmpty();
+      if (allFinished) myTracked.remove(t.buildId);
+    }
+
+    final SRunningBuild build = myServer.findRunningBuildById(t.buildId);
+    if (build == null) {
+      synchronized (this) {
+        myTracked.remove(t.buildId, t);
+      }
+      return;
+    }
+
+    final String region = t.params.get(AWSCommonParams.REGION_NAME_PARAM);
+    if (codeBuildBuild == null) {
+      build.addBuildMessages(Collections.singletonList(DefaultMessagesInfo.createTextMessage("No AWS CodeBuild build with id=" + codeBuildBuildId + " found", Status.ERROR)));
+      addProblem(build, t, codeBuildBuildId, "AWS CodeBuild build " + codeBuildBuildId + " not found");
+    } else {
+      final String status = codeBuildBuild.getBuildStatus();
+      final String buildString = "AWS CodeBuild build " + codeBuildBuild.getProjectName() + " (" + codeBuildBuildId + ")";
+      build.addBuildMessages(getPhaseMessages(buildString, codeBuildBuild));
+      if (CodeBuildUtil.isSucceeded(status)) {
+        build.addBuildMessages(Collections.singletonList(DefaultMessagesInfo.createTextMessage(buildString + " succeeded " + CodeBuildUtil.getBuildLink(codeBuildBuildId, region))));
+      } else {
+        final String description = buildString + (CodeBuildUtil.isFailed(status) ? " failed" : " finished with status " + status);
+        build.addBuildMessages(Collections.singletonList(DefaultMessagesInfo.createTextMessage(description + " " + CodeBuildUtil.getBuildLink(codeBuildBuildId, region), Status.ERROR)));
+        final BuildPhase failedPhase = getFailedPhase(codeBuildBuild);
+        addProblem(build, t, codeBuildBuildId, failedPhase == null ? description : CodeBuildUtil.getPhaseProblemDescription(failedPhase, buildString));
+      }
+    }
+
+    if (allFinished) {
+      finish(build, t);
+    }
+  }
+
+  /**
+   * The phases are reported once the build is finished, the final status and the failure reasons of each phase
+   */
+  @NotNull
+  private static List<BuildMessage1> getPhaseMessages(@NotNull String buildString, @NotNull Build codeBuildBuild) {
+    final List<BuildMessage1> res = new ArrayList<>();
+    if (codeBuildBuild.getPhases() == null) return res;
+    for (BuildPhase phase : codeBuildBuild.getPhases()) {
+      final String status = phase.getPhaseStatus();
+      if (status == null) continue;
+      final Long duration = phase.getDurationInSeconds();
+      final String text = buildString + " " + phase.getPhaseType() + " phase " +
+                          (CodeBuildUtil.isSucceeded(status) ? "succeeded" : CodeBuildUtil.isFailed(status) ? "failed" : "finished with status " + status) +
+                          (duration == null ? "" : " in " + duration + StringUtil.pluralize(" seconds", duration.intValue()));
+      if (CodeBuildUtil.isSucceeded(status)) {
+        res.add(DefaultMessagesInfo.createTextMessage(text));
+      } else {
+        res.add(DefaultMessagesInfo.createTextMessage(text, Status.ERROR));
+        if (phase.getContexts() != null) {
+          for (PhaseContext context : phase.getContexts()) {
+            if (StringUtil.isNotEmpty(context.getMessage())) {
+              res.add(DefaultMessagesInfo.createTextMessage(phase.getPhaseType() + ": " + (StringUtil.isEmpty(context.getStatusCode()) ? "" : context.getStatusCode() + ": ") + context.getMessage(), Status.ERROR));
+            }
+          }
+        }
+      }
+    }
+    return res;
+  }
+
+  @Nullable
+  private static BuildPhase getFailedPhase(@NotNull Build codeBuildBuild) {
+    if (codeBuildBuild.getPhases() == null) return null;
+    for (BuildPhase phase : codeBuildBuild.getPhases()) {
+      final String status = phase.getPhaseStatus();
+      if (status != null && !CodeBuildUtil.isInProgress(status) && !CodeBuildUtil.isSucceeded(status)) return phase;
+    }
+    return null;
+  }
+
+  private static void addProblem(@NotNull SRunningBuild build, @NotNull Tracked t, @NotNull String codeBuildBuildId, @NotNull String description) {
+    final String identity = String.valueOf(AWSCommonParams.calculateIdentity(String.valueOf(t.buildId), t.params, Collections.singletonList(codeBuildBuildId)));
+    build.addBuildProblem(BuildProblemData.createBuildProblem(identity, CodeBuildConstants.BUILD_PROBLEM_TYPE, description));
+  }
+
+  /**
+   * Finishes the build detached from the agent, its status is defined by the build problems reported.
+   * If the build can't be finished, it's failed and stopped, the tracking is already over at this point
+   */
+  private static void finish(@NotNull SRunningBuild build, @NotNull Tracked t) {
+    try {
+      if (FINISH == null || !(build instanceof RunningBuildEx)) {
+        throw new IllegalStateException("the server doesn't support finishing the builds detached from the agent");
+      }
+      FINISH.invoke(build, new Date());
+    } catch (Exception e) {
+      final Throwable cause = e instanceof InvocationTargetException ? e.getCause() : e;
+      LOG.warnAndDebugDetails("Failed to finish the build " + build.getBuildId() + " detached from the agent", cause);
+      final String description = "Failed to finish the build detached from the agent: " + cause.getMessage();
+      addProblem(build, t, "finish", description);
+      try {
+        build.stop(null, description);
+      } catch (Exception ex) {
+        LOG.warnAndDebugDetails("Failed to stop the build " + build.getBuildId() + " detached from the agent", ex);
+      }
+    }
+  }
+
+  /**
+   * The AWS CodeBuild build ids are reported right before detaching, if the check fails the build is considered detached
+   * so that it isn't left running
+   */
+  private static boolean isDetachedFromAgent(@NotNull SRunningBuild build) {
+    if (IS_DETACHED_FROM_AGENT == null) return false;
+    try {
+      return Boolean.TRUE.equals(IS_DETACHED_FROM_AGENT.invoke(build));
+    } catch (ReflectiveOperationException e) {
+      LOG.warnAndDebugDetails("Failed to check if the build " + build.getBuildId() + " is detached from the agent", e);
+      return true;
+    }
+  }
+
+  @Nullable
+  private static Method findMethod(@NotNull Class<?> type, @NotNull String name, @NotNull Class<?>... parameterTypes) {
+    try {
+      return type.getMethod(name, parameterTypes);
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+
+  @Nullable
+  private static Map<String, String> getRunnerParameters(@NotNull SRunningBuild build, @NotNull String stepId) {
+    for (SBuildRunnerDescriptor runner : build.getBuildPromotion().getBuildSettings().getBuildRunners()) {
+      if (stepId.equals(runner.getId())) return resolve(build, runner.getParameters());
+    }
+    return null;
+  }
+
+  @NotNull
+  private static Map<String, String> resolve(@NotNull SBuild build, @NotNull Map<String, String> params) {
+    final ValueResolver resolver = build.getValueResolver();
+    final Map<String, String> res = new HashMap<>();
+    for (Map.Entry<String, String> e : params.entrySet()) {
+      res.put(e.getKey(), resolver.resolve(e.getValue()).getResult());
+    }
+    return res;
+  }
+
+  private static final class Tracked {
+    private final long buildId;
+    @NotNull private final Map<String, String> params;
+    @NotNull private final Set<String> pending; // ids of the AWS CodeBuild builds not finished yet, guarded by the tracker
+    private int pollFailures; // in a row, guarded by the tracker
+
+    private Tracked(long buildId, @NotNull Map<String, String> params, @NotNull Collection<String> ids) {
+      this.buildId = buildId;
+      this.params = params;
+      this.pending = new LinkedHashSet<>(ids);
+    }
+  }
+}
@@ -22,9 +22,42 @@
     <tr>
         <th><label for="${project_name_param}">${project_name_label}: <l:star/></label></th>
         <td><props:textProperty name="${project_name_param}" className="longField" maxlength="256"/><span class="icon-magic magicButton" onclick="BS.CodeBuildProjectNamePopup.showPopup(this);" title="Suggest project name"></span>
+            <span class="smallNote">Specify several comma-separated project names to start a build in each of them.</span>
             <span class="error" id="error_${project_name_param}"></span>
         </td>
     </tr>
+    <tr class="advancedSetting">
+        <th><label for="${env_matrix_param}">${env_matrix_label}:</label></th>
+        <td><props:multilineProperty name="${env_matrix_param}" linkTitle="Enter the environment matrix" rows="5" cols="58" className="longField"/>
+            <span class="smallNote">Newline-separated environment variable overrides, e.g. SHARD=1; BROWSER=chrome. A build is started in each project for each line.</span>
+            <span class="error" id="error_${env_matrix_param}"></span>
+        </td>
+    </tr>
+    <tr class="advancedSetting">
+        <th><label for="${max_concurrent_starts_param}">${max_concurrent_starts_label}:</label></th>
+        <td><props:textProperty name="${max_concurrent_starts_param}" className="longField" maxlength="256"/>
+            <span class="smallNote">Maximum number of builds being started at the same time when starting several builds. Leave blank to use the default value of 10.</span>
+            <span class="error" id="error_${max_concurrent_starts_param}"></span>
+        </td>
+    </tr>
+    <tr class="advancedSetting">
+        <th><label for="${reuse_builds_param}">${reuse_builds_label}:</label></th>
+        <td><props:checkboxProperty name="${reuse_builds_param}"/>
+            <span class="smallNote">Do not start a build if an identical one (same project, source version, build specification, environment and image overrides and environment matrix variables; the passed system properties are not compared) is running or succeeded recently, wait for it or reuse its result instead. Only the builds of the build revision or a full commit id are reused.</span>
+        </td>
+    </tr>
+    <tr class="advancedSetting">
+        <th><label for="${env_include_param}">${env_include_label}:</label></th>
+        <td><props:multilineProperty name="${env_include_param}" linkTitle="Enter system property name patterns" rows="3" cols="58" className="longField"/>
+            <span class="smallNote">Newline-separated names of the build system properties to pass as AWS CodeBuild environment variables, '*' matches any characters, other wildcards aren't supported. Leave blank to pass all system properties.</span>
+        </td>
+    </tr>
+    <tr class="advancedSetting">
+        <th><label for="${env_exclude_param}">${env_exclude_label}:</label></th>
+        <td><props:multilineProperty name="${env_exclude_param}" linkTitle="Enter system property name patterns" rows="3" cols="58" className="longField"/>
+            <span class="smallNote">Newline-separated names of the build system properties not to pass in the same syntax, e.g. teamcity.*</span>
+        </td>
+    </tr>
     <tr class="advancedSetting">
         <th><label for="${source_version_param}">${source_version_label}: <l:star/></label></th>
         <td><props:radioButtonProperty name="${use_build_revision_param}" value="false" id="${use_build_revision_param}_false"/><props:textProperty name="${source_version_param}" className="longField" maxlength="256"/>
@@ -37,6 +70,26 @@
             <span class="smallNote">For S3: zip checkout directory contents, upload to S3 and use as the source code</span>
             <span class="error" id="error_${use_build_revision_param}"></span></td>
     </tr>
+    <tr class="advancedSetting">
+        <th><label for="${source_include_param}">${source_include_label}:</label></th>
+        <td><props:multilineProperty name="${source_include_param}" linkTitle="Enter include rules" rows="5" cols="58" className="longField"/>
+            <span class="smallNote">For S3 with ${use_build_revision_label}: newline-separated .gitignore-style patterns of the checkout directory files to upload. Leave blank to upload all files.</span>
+            <span class="error" id="error_${source_include_param}"></span>
+        </td>
+    </tr>
+    <tr class="advancedSetting">
+        <th><label for="${source_exclude_param}">${source_exclude_label}:</label></th>
+        <td><props:multilineProperty name="${source_exclude_param}" linkTitle="Enter exclude rules" rows="5" cols="58" className="longField"/>
+            <span class="smallNote">For S3 with ${use_build_revision_label}: newline-separated .gitignore-style patterns of the checkout directory files and directories not to upload, e.g. node_modules/</span>
+            <span class="error" id="error_${source_exclude_param}"></span>
+        </td>
+    </tr>
+    <tr class="advancedSetting">
+        <th><label for="${source_use_ignore_files_param}">${source_use_ignore_files_label}:</label></th>
+        <td><props:checkboxProperty name="${source_use_ignore_files_param}"/>
+            <span class="smallNote">For S3 with ${use_build_revision_label}: do not upload .git directories and files ignored by .gitignore and .dockerignore</span>
+        </td>
+    </tr>
     <tr class="advancedSetting">
         <th><label for="${build_spec_param}">${build_spec_label}:</label></th>
         <td><props:multilineProperty name="${build_spec_param}" linkTitle="Enter the build specification" rows="10" cols="58" className="longField"/>
@@ -72,6 +125,20 @@
             <span class="error" id="error_${bucket_param}"></span>
         </td>
     </tr>
+    <tr class="advancedSetting artifactsSetting">
+        <th><label for="${artifacts_download_param}">${artifacts_download_label}:</label></th>
+        <td><props:checkboxProperty name="${artifacts_download_param}"/>
+            <span class="smallNote">Download the AWS CodeBuild build artifacts and publish them as TeamCity build artifacts when the build succeeds.</span>
+            <span class="error" id="error_${artifacts_download_param}"></span>
+        </td>
+    </tr>
+    <tr class="advancedSetting artifactsSetting">
+        <th><label for="${artifacts_download_path_param}">${artifacts_download_path_label}:</label></th>
+        <td><props:textProperty name="${artifacts_download_path_param}" className="longField" maxlength="256"/>
+            <span class="smallNote">Target path in the TeamCity build artifacts. Leave blank to publish to the artifacts root.</span>
+            <span class="error" id="error_${artifacts_download_path_param}"></span>
+        </td>
+    </tr>
     <tr class="advancedSetting">
         <th><label for="${timeout_minutes_param}">${timeout_minutes_label}:</label></th>
         <td><props:textProperty name="${timeout_minutes_param}" className="longField" maxlength="256"/>
@@ -85,6 +152,26 @@
             <props:option value="${wait_none}">${wait_none_label}</props:option>
             <props:option value="${wait_build}">${wait_build_label}</props:option>
             <props:option value="${wait_step}">${wait_step_label}</props:option>
-        </props:selectProperty></td>
+            <c:if test="${wait_server_supported}">
+                <props:option value="${wait_server}">${wait_server_label}</props:option>
+            </c:if>
+        </props:selectProperty>
+            <c:if test="${wait_server_supported}">
+                <span class="smallNote">${wait_server_label}: the agent is released right after the start and the server finishes the TeamCity build when AWS CodeBuild builds finish. Must be the last build step.</span>
+            </c:if>
+        </td>
+    </tr>
+    <tr class="advancedSetting">
+        <th><label for="${fail_fast_param}">${fail_fast_label}:</label></th>
+        <td><props:checkboxProperty name="${fail_fast_param}"/>
+            <span class="smallNote">Stop the AWS CodeBuild build and fail the step as soon as a build phase fails instead of waiting for the remaining phases. With several builds the others are stopped too.</span>
+            <span class="error" id="error_${fail_fast_param}"></span>
+        </td>
+    </tr>
+    <tr class="advancedSetting">
+        <th><label for="${stream_logs_param}">${stream_logs_label}:</label></th>
+        <td><props:checkboxProperty name="${stream_logs_param}"/>
+            <span class="smallNote">Import the AWS CloudWatch build log into the TeamCity build log while waiting for the build finish.</span>
+        </td>
     </tr>
 </l:settingsGroup>
\ No newline at end of file
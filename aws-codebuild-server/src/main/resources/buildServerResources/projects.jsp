@@ -1,20 +1,23 @@
 <%@ taglib prefix="c" uri="http://java.sun.com/jsp/jstl/core" %>
 <%@ taglib prefix="fn" uri="http://java.sun.com/jsp/jstl/functions"%>
+<%@ taglib prefix="fmt" uri="http://java.sun.com/jsp/jstl/fmt" %>
 <%@ taglib prefix="bs" tagdir="/WEB-INF/tags" %>
 
 
 
-<jsp:useBean id="projects" scope="request" type="java.util.Collection<java.lang.String>"/>
+<jsp:useBean id="loadTime" scope="request" type="java.util.Date"/>
+<jsp:useBean id="refreshing" scope="request" type="java.lang.Boolean"/>
+<jsp:useBean id="filter" scope="request" type="java.lang.String"/>
 
 <div class="codeBuildPopup">
-    <c:if test="${fn:length(projects) >= 5}">
-        <c:set var="containerId"><bs:id/></c:set>
-        <bs:inplaceFilter containerId="${containerId}" activate="true" filterText="&lt;filter projects>"/>
-    </c:if>
-    <ul id="${containerId}">
-    <c:forEach items="${projects}" var="p">
-        <li class="inplaceFiltered" onclick="BS.CodeBuildProjectNamePopup.fillProjectName('<bs:escapeForJs text="${p.name}"/>', '${p.sourceType}');"><c:out value="${p.name}"/></li>
-    </c:forEach>
-    </ul>
-    <c:if test="${empty projects}"><span class="italic">No projects found</span></c:if>
-</div>
\ No newline at end of file
+    <div class="projectsStatus">
+        <span class="smallNote">Loaded at <fmt:formatDate value="${loadTime}" type="time"/><c:if test="${refreshing}">, updating in the background</c:if></span>
+        <a href="#" onclick="BS.CodeBuildProjectNamePopup.refresh(); return false;">Refresh</a>
+    </div>
+    <div class="projectsFilter">
+        <input type="text" id="codeBuildProjectsFilter" class="textField" placeholder="&lt;filter projects&gt;" value="<c:out value="${filter}"/>" onkeyup="BS.CodeBuildProjectNamePopup.scheduleSearch();"/>
+    </div>
+    <div id="codeBuildProjectsPage">
+        <%@include file="projectsPage.jspf"%>
+    </div>
+</div>
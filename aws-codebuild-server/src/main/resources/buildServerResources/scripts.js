@@ -55,9 +55,27 @@
     BS.CodeBuildProjectNamePopup.showPopup = function(nearestElement) {
         this.options.parameters = BS.CodeBuildFakeForm.serializeParameters();
         BS.CodeBuildFakeForm.clearErrors();
+        this.nearestElement = nearestElement;
         this.showPopupNearElement(nearestElement);
     };
 
+    BS.CodeBuildProjectNamePopup.refresh = function() {
+        this.options.parameters = BS.CodeBuildFakeForm.serializeParameters() + '&refresh=true';
+        this.showPopupNearElement(this.nearestElement);
+    };
+
+    BS.CodeBuildProjectNamePopup.scheduleSearch = function() {
+        clearTimeout(this.searchTimeout);
+        this.searchTimeout = setTimeout(function () {
+            BS.CodeBuildProjectNamePopup.search(0);
+        }, 300);
+    };
+
+    BS.CodeBuildProjectNamePopup.search = function(page) {
+        $('#codeBuildProjectsPage').load(this.options.url,
+            BS.CodeBuildFakeForm.serializeParameters() + '&fragment=true&page=' + page + '&filter=' + encodeURIComponent($('#codeBuildProjectsFilter').val()));
+    };
+
     BS.CodeBuildProjectNamePopup.fillProjectName = function(name, sourceType) {
         $('#codebuild_project_name').val(name);
         BS.CodeBuild.updateSourceVersionVisibility(sourceType);
@@ -8,10 +8,46 @@
     ${project_name_label}: <props:displayValue name="${project_name_param}" emptyValue="empty"/>
 </div>
 
+<c:if test="${propertiesBean.properties[reuse_builds_param] eq 'true'}">
+    <div class="parameter">
+        ${reuse_builds_label}: <strong><props:displayCheckboxValue name="${reuse_builds_param}"/></strong>
+    </div>
+</c:if>
+
+<c:if test="${not empty propertiesBean.properties[env_matrix_param]}">
+    <div class="parameter">
+        ${env_matrix_label}: <props:displayValue name="${env_matrix_param}" showInPopup="true" popupTitle="Environment matrix" popupLinkText="view environment matrix"/>
+    </div>
+    <div class="parameter">
+        ${max_concurrent_starts_label}: <props:displayValue name="${max_concurrent_starts_param}" emptyValue="default"/>
+    </div>
+</c:if>
+
+<div class="parameter">
+    ${env_include_label}: <props:displayValue name="${env_include_param}" emptyValue="all" showInPopup="true" popupTitle="Passed system properties" popupLinkText="view patterns"/>
+</div>
+<c:if test="${not empty propertiesBean.properties[env_exclude_param]}">
+    <div class="parameter">
+        ${env_exclude_label}: <props:displayValue name="${env_exclude_param}" showInPopup="true" popupTitle="Skipped system properties" popupLinkText="view patterns"/>
+    </div>
+</c:if>
+
 <div class="parameter">
     ${source_version_label}: <props:displayValue name="${source_version_param}" emptyValue="empty"/>
 </div>
 
+<c:if test="${propertiesBean.properties[use_build_revision_param] eq 'true'}">
+    <div class="parameter">
+        ${source_include_label}: <props:displayValue name="${source_include_param}" emptyValue="all files" showInPopup="true" popupTitle="Include rules" popupLinkText="view include rules"/>
+    </div>
+    <div class="parameter">
+        ${source_exclude_label}: <props:displayValue name="${source_exclude_param}" emptyValue="none" showInPopup="true" popupTitle="Exclude rules" popupLinkText="view exclude rules"/>
+    </div>
+    <div class="parameter">
+        ${source_use_ignore_files_label}: <strong><props:displayCheckboxValue name="${source_use_ignore_files_param}"/></strong>
+    </div>
+</c:if>
+
 <div class="parameter">
     ${build_spec_label}: <props:displayValue name="${build_spec_param}" emptyValue="default" showInPopup="true" popupTitle="Build specification" popupLinkText="view build spec" syntax="yaml"/>
 </div>
@@ -32,6 +68,14 @@
     <div class="parameter">
         ${bucket_label}: <props:displayValue name="${bucket_param}" emptyValue="empty"/>
     </div>
+    <div class="parameter">
+        ${artifacts_download_label}: <strong><props:displayCheckboxValue name="${artifacts_download_param}"/></strong>
+    </div>
+    <c:if test="${propertiesBean.properties[artifacts_download_param] eq 'true'}">
+    <div class="parameter">
+        ${artifacts_download_path_label}: <props:displayValue name="${artifacts_download_path_param}" emptyValue="root"/>
+    </div>
+    </c:if>
 </c:if>
 
 <div class="parameter">
@@ -42,6 +86,15 @@
 <div class="parameter">
     ${wait_label}: <strong><c:choose><c:when test="${wait_build eq wait}">${wait_build_label}</c:when>
         <c:when test="${wait_step eq wait}">${wait_step_label}</c:when>
+        <c:when test="${wait_server eq wait}">${wait_server_label}</c:when>
         <c:otherwise>${wait_none_label}</c:otherwise>
     </c:choose></strong>
-</div>
\ No newline at end of file
+</div>
+<c:if test="${wait_build eq wait or wait_step eq wait}">
+    <div class="parameter">
+        ${fail_fast_label}: <strong><props:displayCheckboxValue name="${fail_fast_param}"/></strong>
+    </div>
+    <div class="parameter">
+        ${stream_logs_label}: <strong><props:displayCheckboxValue name="${stream_logs_param}"/></strong>
+    </div>
+</c:if>